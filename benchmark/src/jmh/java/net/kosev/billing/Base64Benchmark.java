@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding with the standard and web safe alphabets. 16 bytes is a developer
+ * payload, 256 bytes a 2048 bit RSA signature and 294 bytes an encoded public key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class Base64Benchmark {
+
+    @Param({"16", "256", "294"})
+    public int size;
+
+    private byte[] mData;
+    private String mEncoded;
+    private String mEncodedWebSafe;
+
+    @Setup
+    public void setUp() {
+        mData = new byte[size];
+        new Random(42).nextBytes(mData);
+        mEncoded = Base64.encode(mData);
+        mEncodedWebSafe = Base64.encodeWebSafe(mData, false);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encode(mData);
+    }
+
+    @Benchmark
+    public String encodeWebSafe() {
+        return Base64.encodeWebSafe(mData, false);
+    }
+
+    @Benchmark
+    public byte[] decode() throws Base64.Base64Exception {
+        return Base64.decode(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] decodeWebSafe() throws Base64.Base64Exception {
+        return Base64.decodeWebSafe(mEncodedWebSafe);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a signature-sized value (2048 bit RSA signature, 344 characters) through the
+ * fast path for clean input against the strict path, which a leading space forces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class Base64DecodeBenchmark {
+
+    private String mClean;
+    private String mWithWhitespace;
+    private byte[] mOut;
+
+    @Setup
+    public void setUp() {
+        byte[] signature = new byte[256];
+        new Random(42).nextBytes(signature);
+        mClean = Base64.encode(signature);
+        mWithWhitespace = " " + mClean;
+        mOut = new byte[Base64.maxDecodedLength(mWithWhitespace.length())];
+    }
+
+    @Benchmark
+    public int decodeCleanIntoBuffer() throws Base64.Base64Exception {
+        return Base64.decode(mClean, 0, mClean.length(), mOut, 0);
+    }
+
+    @Benchmark
+    public int decodeStrictIntoBuffer() throws Base64.Base64Exception {
+        return Base64.decode(mWithWhitespace, 0, mWithWhitespace.length(), mOut, 0);
+    }
+
+    @Benchmark
+    public byte[] decodeClean() throws Base64.Base64Exception {
+        return Base64.decode(mClean);
+    }
+
+    @Benchmark
+    public byte[] decodeStrict() throws Base64.Base64Exception {
+        return Base64.decode(mWithWhitespace);
+    }
+
+}
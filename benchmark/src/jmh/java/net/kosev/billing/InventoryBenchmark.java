@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups in inventories of different sizes, half of the skus owned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InventoryBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private Inventory mInventory;
+    private String[] mSkus;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws JSONException {
+        Inventory.Builder builder = new Inventory.Builder();
+        mSkus = new String[size];
+        for (int i = 0; i < size; i++) {
+            String sku = "sku_" + i;
+            mSkus[i] = sku;
+            builder.addSkuDetails(new SkuDetails("{\"productId\":\"" + sku + "\",\"type\":\"inapp\","
+                    + "\"price\":\"$0.99\",\"price_amount_micros\":990000,\"price_currency_code\":\"USD\"}"));
+            if (i % 2 == 0) {
+                builder.addPurchase(new Purchase("{\"productId\":\"" + sku + "\",\"purchaseState\":0,"
+                        + "\"purchaseToken\":\"token_" + i + "\"}", "signature"));
+            }
+        }
+        mInventory = builder.build();
+    }
+
+    private String nextSku() {
+        String sku = mSkus[mNext];
+        mNext = (mNext + 7919) % mSkus.length;
+        return sku;
+    }
+
+    @Benchmark
+    public SkuDetails getSkuDetails() {
+        return mInventory.getSkuDetails(nextSku());
+    }
+
+    @Benchmark
+    public Purchase getPurchase() {
+        return mInventory.getPurchase(nextSku());
+    }
+
+    @Benchmark
+    public boolean hasPurchase() {
+        return mInventory.hasPurchase(nextSku());
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming {@link JsonFieldReader} parsing against the previous {@code JSONObject} based parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParserBenchmark {
+
+    static final String PURCHASE_JSON = "{\"orderId\":\"GPA.3345-1234-5678-90123\","
+            + "\"packageName\":\"com.example.app\",\"productId\":\"premium_upgrade\","
+            + "\"purchaseTime\":1526389543211,\"purchaseState\":0,"
+            + "\"developerPayload\":\"bGoa+V7g/yqDXvKRqq+JTFn4uQZbPiQJo4pf9RzJ\","
+            + "\"purchaseToken\":\"opaque-token-up-to-1000-characters.AO-J1OyNtPq4dl9yBz7kNpXNMQd3oQf1jrGNE8gSiAhNJBuc6X2Q\","
+            + "\"autoRenewing\":false}";
+
+    static final String SKU_DETAILS_JSON = "{\"productId\":\"premium_upgrade\",\"type\":\"inapp\","
+            + "\"price\":\"\\u20ac3.49\",\"price_amount_micros\":3490000,\"price_currency_code\":\"EUR\","
+            + "\"title\":\"Premium upgrade (Example App)\","
+            + "\"description\":\"Unlocks all levels and removes ads forever.\"}";
+
+    @Benchmark
+    public void purchaseStreaming(Blackhole blackhole) throws JSONException {
+        blackhole.consume(new Purchase(PURCHASE_JSON, "signature"));
+    }
+
+    @Benchmark
+    public void purchaseJsonObject(Blackhole blackhole) throws JSONException {
+        JSONObject json = new JSONObject(PURCHASE_JSON);
+        blackhole.consume(json.optString("productId"));
+        blackhole.consume(json.optString("orderId"));
+        blackhole.consume(json.optString("packageName"));
+        blackhole.consume(json.optLong("purchaseTime"));
+        blackhole.consume(json.optInt("purchaseState"));
+        blackhole.consume(json.optString("developerPayload"));
+        blackhole.consume(json.optString("token", json.optString("purchaseToken")));
+    }
+
+    @Benchmark
+    public void skuDetailsStreaming(Blackhole blackhole) throws JSONException {
+        blackhole.consume(new SkuDetails(SKU_DETAILS_JSON));
+    }
+
+    @Benchmark
+    public void skuDetailsJsonObject(Blackhole blackhole) throws JSONException {
+        JSONObject json = new JSONObject(SKU_DETAILS_JSON);
+        blackhole.consume(json.optString("productId"));
+        blackhole.consume(json.optString("type"));
+        blackhole.consume(json.optString("price"));
+        blackhole.consume(json.optLong("price_amount_micros"));
+        blackhole.consume(json.optString("price_currency_code"));
+        blackhole.consume(json.optString("title"));
+        blackhole.consume(json.optString("description"));
+    }
+
+}
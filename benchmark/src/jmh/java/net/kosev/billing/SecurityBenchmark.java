@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Public key parsing and purchase signature verification, through the static {@link Security}
+ * helpers and through a reused {@link PurchaseVerifier}, with and without a {@link VerificationCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SecurityBenchmark {
+
+    private String mEncodedKey;
+    private PublicKey mKey;
+    private PurchaseVerifier mVerifier;
+    private PurchaseVerifier mCachingVerifier;
+    private String mSignature;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        mEncodedKey = Base64.encode(keyPair.getPublic().getEncoded());
+        mKey = Security.generatePublicKey(mEncodedKey);
+        mVerifier = new PurchaseVerifier(mKey);
+
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(ParserBenchmark.PURCHASE_JSON.getBytes("UTF-8"));
+        mSignature = Base64.encode(signature.sign());
+
+        mCachingVerifier = new PurchaseVerifier(mKey);
+        mCachingVerifier.setCache(new VerificationCache(100));
+        mCachingVerifier.verifyPurchase(ParserBenchmark.PURCHASE_JSON, mSignature);
+    }
+
+    @Benchmark
+    public PublicKey generatePublicKey() {
+        return Security.generatePublicKey(mEncodedKey);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return Security.verify(mKey, ParserBenchmark.PURCHASE_JSON, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifyPurchase() {
+        return Security.verifyPurchase(mEncodedKey, ParserBenchmark.PURCHASE_JSON, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifierVerifyPurchase() {
+        return mVerifier.verifyPurchase(ParserBenchmark.PURCHASE_JSON, mSignature);
+    }
+
+    @Benchmark
+    public boolean verifierVerifyPurchaseCached() {
+        return mCachingVerifier.verifyPurchase(ParserBenchmark.PURCHASE_JSON, mSignature);
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Price range and top-N queries on {@link SkuCatalog} against filtering and sorting
+ * the inventory's sku details on every query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SkuCatalogBenchmark {
+
+    // Billing needs the Android runtime, its type constants are repeated here
+    private static final String TYPE_INAPP = "inapp";
+    private static final String[] TYPES = { TYPE_INAPP, "subs" };
+    private static final String[] CURRENCIES = { "USD", "EUR", "GBP", "JPY" };
+    private static final long MIN_MICROS = 5000000;
+    private static final long MAX_MICROS = 15000000;
+
+    private static final Comparator<SkuDetails> PRICE_ORDER = new Comparator<SkuDetails>() {
+        public int compare(SkuDetails a, SkuDetails b) {
+            return a.priceAmountMicros < b.priceAmountMicros ? -1 : (a.priceAmountMicros == b.priceAmountMicros ? 0 : 1);
+        }
+    };
+
+    @Param({"100", "5000"})
+    public int size;
+
+    private Inventory mInventory;
+    private SkuCatalog mCatalog;
+
+    @Setup
+    public void setUp() throws JSONException {
+        Random random = new Random(1);
+        Inventory.Builder builder = new Inventory.Builder();
+        for (int i = 0; i < size; i++) {
+            builder.addSkuDetails(new SkuDetails("{\"productId\":\"sku_" + i + "\",\"type\":\""
+                    + TYPES[random.nextInt(TYPES.length)] + "\",\"price_amount_micros\":"
+                    + (random.nextInt(100) + 1) * 490000L + ",\"price_currency_code\":\""
+                    + CURRENCIES[random.nextInt(CURRENCIES.length)] + "\"}"));
+        }
+        mInventory = builder.build();
+        mCatalog = mInventory.getCatalog();
+    }
+
+    @Benchmark
+    public void rangeCatalog(Blackhole blackhole) {
+        List<SkuDetails> range = mCatalog.getByPrice(TYPE_INAPP, "USD", MIN_MICROS, MAX_MICROS);
+        for (int i = 0, count = range.size(); i < count; i++) {
+            blackhole.consume(range.get(i));
+        }
+    }
+
+    @Benchmark
+    public void rangeFilterAndSort(Blackhole blackhole) {
+        List<SkuDetails> range = new ArrayList<>();
+        for (SkuDetails details : mInventory.getAllSkuDetails()) {
+            if (TYPE_INAPP.equals(details.type) && "USD".equals(details.priceCurrencyCode)
+                    && details.priceAmountMicros >= MIN_MICROS && details.priceAmountMicros <= MAX_MICROS) {
+                range.add(details);
+            }
+        }
+        Collections.sort(range, PRICE_ORDER);
+        for (int i = 0, count = range.size(); i < count; i++) {
+            blackhole.consume(range.get(i));
+        }
+    }
+
+    @Benchmark
+    public void top10Catalog(Blackhole blackhole) {
+        List<SkuDetails> top = mCatalog.getMostExpensive(null, "EUR", 10);
+        for (int i = 0, count = top.size(); i < count; i++) {
+            blackhole.consume(top.get(i));
+        }
+    }
+
+    @Benchmark
+    public void top10FilterAndSort(Blackhole blackhole) {
+        List<SkuDetails> matching = new ArrayList<>();
+        for (SkuDetails details : mInventory.getAllSkuDetails()) {
+            if ("EUR".equals(details.priceCurrencyCode)) matching.add(details);
+        }
+        Collections.sort(matching, Collections.reverseOrder(PRICE_ORDER));
+        for (int i = 0, count = Math.min(10, matching.size()); i < count; i++) {
+            blackhole.consume(matching.get(i));
+        }
+    }
+
+    @Benchmark
+    public SkuCatalog build() {
+        return new SkuCatalog(mInventory.getAllSkuDetails());
+    }
+
+}
@@ -14,6 +14,9 @@
 
 package net.kosev.billing;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -355,65 +358,6 @@ public class Base64 {
     /* ********  D E C O D I N G   M E T H O D S  ******** */
 
 
-    /**
-     * Decodes four bytes from array <var>source</var>
-     * and writes the resulting bytes (up to three of them)
-     * to <var>destination</var>.
-     * The source and destination arrays can be manipulated
-     * anywhere along their length by specifying
-     * <var>srcOffset</var> and <var>destOffset</var>.
-     * This method does not check to make sure your arrays
-     * are large enough to accommodate <var>srcOffset</var> + 4 for
-     * the <var>source</var> array or <var>destOffset</var> + 3 for
-     * the <var>destination</var> array.
-     * This method returns the actual number of bytes that
-     * were converted from the Base64 encoding.
-     *
-     *
-     * @param source the array to convert
-     * @param srcOffset the index where conversion begins
-     * @param destination the array to hold the conversion
-     * @param destOffset the index where output will be put
-     * @param decodabet the decodabet for decoding Base64 content
-     * @return the number of decoded bytes converted
-     * @since 1.3
-     */
-    private static int decode4to3(byte[] source, int srcOffset,
-            byte[] destination, int destOffset, byte[] decodabet) {
-        // Example: Dk==
-        if (source[srcOffset + 2] == EQUALS_SIGN) {
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            return 1;
-        } else if (source[srcOffset + 3] == EQUALS_SIGN) {
-            // Example: DkL=
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                    | ((decodabet[source[srcOffset + 2]] << 24) >>> 18);
-
-            destination[destOffset] = (byte) (outBuff >>> 16);
-            destination[destOffset + 1] = (byte) (outBuff >>> 8);
-            return 2;
-        } else {
-            // Example: DkLE
-            int outBuff =
-                    ((decodabet[source[srcOffset]] << 24) >>> 6)
-                    | ((decodabet[source[srcOffset + 1]] << 24) >>> 12)
-                    | ((decodabet[source[srcOffset + 2]] << 24) >>> 18)
-                    | ((decodabet[source[srcOffset + 3]] << 24) >>> 24);
-
-            destination[destOffset] = (byte) (outBuff >> 16);
-            destination[destOffset + 1] = (byte) (outBuff >> 8);
-            destination[destOffset + 2] = (byte) (outBuff);
-            return 3;
-        }
-    } // end decodeToBytes
-
-
     /**
      * Decodes data from Base64 notation.
      *
@@ -422,8 +366,7 @@ public class Base64 {
      * @since 1.4
      */
     public static byte[] decode(String s) throws Base64Exception {
-        byte[] bytes = s.getBytes();
-        return decode(bytes, 0, bytes.length);
+        return decode(s, DECODABET);
     }
 
     /**
@@ -434,8 +377,7 @@ public class Base64 {
      * @return the decoded data
      */
     public static byte[] decodeWebSafe(String s) throws Base64Exception {
-        byte[] bytes = s.getBytes();
-        return decodeWebSafe(bytes, 0, bytes.length);
+        return decode(s, WEBSAFE_DECODABET);
     }
 
     /**
@@ -507,18 +449,182 @@ public class Base64 {
      */
     public static byte[] decode(byte[] source, int off, int len, byte[] decodabet)
             throws Base64Exception {
-        int len34 = len * 3 / 4;
-        byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-        int outBuffPosn = 0;
+        byte[] outBuff = new byte[maxDecodedLength(len)];
+        int outLen = decode(source, null, null, off, len, outBuff, null, 0, decodabet);
+        return copyOf(outBuff, outLen);
+    }
+
+    private static byte[] decode(CharSequence source, byte[] decodabet) throws Base64Exception {
+        int len = source.length();
+        byte[] outBuff = new byte[maxDecodedLength(len)];
+        int outLen = decode(null, source, null, 0, len, outBuff, null, 0, decodabet);
+        return copyOf(outBuff, outLen);
+    }
+
+    /**
+     * Decodes Base64 characters straight into the caller's buffer without
+     * allocating.
+     *
+     * @return the number of decoded bytes
+     * @see #decode(CharSequence, int, int, byte[], int, byte[])
+     */
+    public static int decode(CharSequence source, int off, int len, byte[] destination,
+            int destOffset) throws Base64Exception {
+        return decode(null, source, null, off, len, destination, null, destOffset, DECODABET);
+    }
+
+    /**
+     * Decodes Base64 characters straight into the caller's buffer without
+     * allocating. The destination must have room for
+     * {@link #maxDecodedLength(int)} bytes from <var>destOffset</var>.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param destination the array to hold the decoded data
+     * @param destOffset the index where output will be put
+     * @param decodabet the decodabet for decoding Base64 content
+     * @return the number of decoded bytes
+     */
+    public static int decode(CharSequence source, int off, int len, byte[] destination,
+            int destOffset, byte[] decodabet) throws Base64Exception {
+        return decode(null, source, null, off, len, destination, null, destOffset, decodabet);
+    }
+
+    /**
+     * Decodes Base64 bytes straight into the caller's buffer without
+     * allocating. The destination must have room for
+     * {@link #maxDecodedLength(int)} bytes from <var>destOffset</var>.
+     *
+     * @return the number of decoded bytes
+     * @see #decode(CharSequence, int, int, byte[], int, byte[])
+     */
+    public static int decode(byte[] source, int off, int len, byte[] destination,
+            int destOffset, byte[] decodabet) throws Base64Exception {
+        return decode(source, null, null, off, len, destination, null, destOffset, decodabet);
+    }
+
+    /**
+     * Decodes the remaining bytes of <var>source</var> into <var>destination</var>
+     * starting at its position and advances both buffers.
+     *
+     * @return the number of decoded bytes
+     * @see #decode(ByteBuffer, ByteBuffer, byte[])
+     */
+    public static int decode(ByteBuffer source, ByteBuffer destination) throws Base64Exception {
+        return decode(source, destination, DECODABET);
+    }
+
+    /**
+     * Decodes the remaining bytes of <var>source</var> into <var>destination</var>
+     * starting at its position and advances both buffers. Heap and direct
+     * buffers are read and written in place.
+     *
+     * @return the number of decoded bytes
+     */
+    public static int decode(ByteBuffer source, ByteBuffer destination, byte[] decodabet)
+            throws Base64Exception {
+        int len = source.remaining();
+        if (destination.remaining() < maxDecodedLength(len)) {
+            throw new BufferOverflowException();
+        }
+
+        int outLen;
+        if (source.hasArray()) {
+            int off = source.arrayOffset() + source.position();
+            if (destination.hasArray()) {
+                outLen = decode(source.array(), null, null, off, len, destination.array(), null,
+                        destination.arrayOffset() + destination.position(), decodabet);
+            } else {
+                outLen = decode(source.array(), null, null, off, len, null, destination,
+                        destination.position(), decodabet);
+            }
+        } else if (destination.hasArray()) {
+            outLen = decode(null, null, source, source.position(), len, destination.array(), null,
+                    destination.arrayOffset() + destination.position(), decodabet);
+        } else {
+            outLen = decode(null, null, source, source.position(), len, null, destination,
+                    destination.position(), decodabet);
+        }
 
-        byte[] b4 = new byte[4];
-        int b4Posn = 0;
+        source.position(source.position() + len);
+        destination.position(destination.position() + outLen);
+        return outLen;
+    }
+
+    /**
+     * Upper bound of the decoded size of <var>len</var> Base64 characters.
+     */
+    public static int maxDecodedLength(int len) {
+        return len / 4 * 3 + 2;
+    }
+
+    /**
+     * Decoding loop shared by all sources and destinations. Exactly one of
+     * <var>bytes</var>, <var>chars</var> and <var>buffer</var> holds the input
+     * and exactly one of <var>out</var> and <var>outBuffer</var> receives the
+     * output; buffer indexes are absolute.
+     */
+    private static int decode(byte[] bytes, CharSequence chars, ByteBuffer buffer, int off, int len,
+            byte[] out, ByteBuffer outBuffer, int outOff, byte[] decodabet)
+            throws Base64Exception {
         int i = 0;
-        byte sbiCrop = 0;
-        byte sbiDecode = 0;
-        for (i = 0; i < len; i++) {
-            sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
-            sbiDecode = decodabet[sbiCrop];
+        int outPosn = outOff;
+
+        // Fast path: convert whole groups of four clean characters until
+        // the first whitespace, padding or invalid character. The last group
+        // is always left to the strict loop below, which also takes over
+        // from the first group that is not clean.
+        if (out != null) {
+            if (bytes != null) {
+                for (; i + 4 < len; i += 4) {
+                    int b0 = bytes[off + i];
+                    int b1 = bytes[off + i + 1];
+                    int b2 = bytes[off + i + 2];
+                    int b3 = bytes[off + i + 3];
+                    if ((b0 | b1 | b2 | b3) < 0) break;
+
+                    int d0 = decodabet[b0];
+                    int d1 = decodabet[b1];
+                    int d2 = decodabet[b2];
+                    int d3 = decodabet[b3];
+                    if ((d0 | d1 | d2 | d3) < 0) break;
+
+                    int value = (d0 << 18) | (d1 << 12) | (d2 << 6) | d3;
+                    out[outPosn] = (byte) (value >> 16);
+                    out[outPosn + 1] = (byte) (value >> 8);
+                    out[outPosn + 2] = (byte) value;
+                    outPosn += 3;
+                }
+            } else if (chars != null) {
+                for (; i + 4 < len; i += 4) {
+                    int c0 = chars.charAt(off + i);
+                    int c1 = chars.charAt(off + i + 1);
+                    int c2 = chars.charAt(off + i + 2);
+                    int c3 = chars.charAt(off + i + 3);
+                    if ((c0 | c1 | c2 | c3) > 0x7f) break;
+
+                    int d0 = decodabet[c0];
+                    int d1 = decodabet[c1];
+                    int d2 = decodabet[c2];
+                    int d3 = decodabet[c3];
+                    if ((d0 | d1 | d2 | d3) < 0) break;
+
+                    int value = (d0 << 18) | (d1 << 12) | (d2 << 6) | d3;
+                    out[outPosn] = (byte) (value >> 16);
+                    out[outPosn + 1] = (byte) (value >> 8);
+                    out[outPosn + 2] = (byte) value;
+                    outPosn += 3;
+                }
+            }
+        }
+
+        int quad = 0;
+        int quadPosn = 0;
+        for (; i < len; i++) {
+            int c = read(bytes, chars, buffer, i + off);
+            byte sbiCrop = (byte) (c & 0x7f); // Only the low seven bits
+            byte sbiDecode = c > 0x7f && chars != null ? -9 : decodabet[sbiCrop];
 
             if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
                 if (sbiDecode >= EQUALS_SIGN_ENC) {
@@ -526,12 +632,11 @@ public class Base64 {
                     // and must be the last byte[s] in the encoded value
                     if (sbiCrop == EQUALS_SIGN) {
                         int bytesLeft = len - i;
-                        byte lastByte = (byte) (source[len - 1 + off] & 0x7f);
-                        if (b4Posn == 0 || b4Posn == 1) {
+                        byte lastByte = (byte) (read(bytes, chars, buffer, len - 1 + off) & 0x7f);
+                        if (quadPosn == 0 || quadPosn == 1) {
                             throw new Base64Exception(
                                     "invalid padding byte '=' at byte offset " + i);
-                        } else if ((b4Posn == 3 && bytesLeft > 2)
-                                || (b4Posn == 4 && bytesLeft > 1)) {
+                        } else if (quadPosn == 3 && bytesLeft > 2) {
                             throw new Base64Exception(
                                     "padding byte '=' falsely signals end of encoded value "
                                             + "at offset " + i);
@@ -542,35 +647,55 @@ public class Base64 {
                         break;
                     }
 
-                    b4[b4Posn++] = sbiCrop;
-                    if (b4Posn == 4) {
-                        outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
-                        b4Posn = 0;
+                    quad = (quad << 6) | sbiDecode;
+                    if (++quadPosn == 4) {
+                        outPosn = write(out, outBuffer, outPosn, (byte) (quad >> 16));
+                        outPosn = write(out, outBuffer, outPosn, (byte) (quad >> 8));
+                        outPosn = write(out, outBuffer, outPosn, (byte) quad);
+                        quad = 0;
+                        quadPosn = 0;
                     }
                 }
             } else {
                 throw new Base64Exception("Bad Base64 input character at " + i
-                        + ": " + source[i + off] + "(decimal)");
+                        + ": " + c + "(decimal)");
             }
         }
 
-        // Because web safe encoding allows non padding base64 encodes, we
-        // need to pad the rest of the b4 buffer with equal signs when
-        // b4Posn != 0.  There can be at most 2 equal signs at the end of
-        // four characters, so the b4 buffer must have two or three
-        // characters.  This also catches the case where the input is
-        // padded with EQUALS_SIGN
-        if (b4Posn != 0) {
-            if (b4Posn == 1) {
-                throw new Base64Exception("single trailing character at offset "
-                        + (len - 1));
-            }
-            b4[b4Posn++] = EQUALS_SIGN;
-            outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+        // Because web safe encoding allows non padding base64 encodes, the
+        // last group may hold two or three characters.  This also catches
+        // the case where the input is padded with EQUALS_SIGN
+        if (quadPosn == 1) {
+            throw new Base64Exception("single trailing character at offset "
+                    + (len - 1));
+        } else if (quadPosn == 2) {
+            outPosn = write(out, outBuffer, outPosn, (byte) (quad >> 4));
+        } else if (quadPosn == 3) {
+            outPosn = write(out, outBuffer, outPosn, (byte) (quad >> 10));
+            outPosn = write(out, outBuffer, outPosn, (byte) (quad >> 2));
+        }
+
+        return outPosn - outOff;
+    }
+
+    private static int read(byte[] bytes, CharSequence chars, ByteBuffer buffer, int index) {
+        if (bytes != null) return bytes[index];
+        if (chars != null) return chars.charAt(index);
+        return buffer.get(index);
+    }
+
+    private static int write(byte[] out, ByteBuffer outBuffer, int index, byte value) {
+        if (out != null) {
+            out[index] = value;
+        } else {
+            outBuffer.put(index, value);
         }
+        return index + 1;
+    }
 
-        byte[] out = new byte[outBuffPosn];
-        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
+    private static byte[] copyOf(byte[] source, int length) {
+        byte[] out = new byte[length];
+        System.arraycopy(source, 0, out, 0, length);
         return out;
     }
 }
@@ -21,18 +21,40 @@ import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentSender;
 import android.content.ServiceConnection;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.text.TextUtils;
 
 import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
 
+import java.io.File;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 @SuppressWarnings("unused")
 public class Billing {
@@ -49,6 +71,7 @@ public class Billing {
     public static final String RESPONSE_INAPP_ITEM_LIST = "INAPP_PURCHASE_ITEM_LIST";
     public static final String RESPONSE_INAPP_PURCHASE_DATA_LIST = "INAPP_PURCHASE_DATA_LIST";
     public static final String RESPONSE_INAPP_SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";
+    public static final String RESPONSE_INAPP_CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN";
 
     public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
     public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
@@ -68,21 +91,84 @@ public class Billing {
     public static final int BILLING_DISPOSED = -1001;
     public static final int BILLING_VERIFICATION_FAILED = -1002;
     public static final int BILLING_PURCHASE_ERROR = -1003;
+    public static final int BILLING_CANCELLED = -1004;
 
+    public static final int VERIFICATION_POLICY_FAIL = 0;
+    public static final int VERIFICATION_POLICY_SKIP = 1;
+
+    private static final int SKU_DETAILS_CHUNK_SIZE = 20;
+    private static final int SKU_DETAILS_MAX_IN_FLIGHT = 4;
+    private static final int WORKER_THREADS = 8;
+    private static final int VERIFICATION_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final long RECONNECT_INITIAL_DELAY = 1000;
+    private static final long RECONNECT_MAX_DELAY = 60 * 1000;
+    private static final int RECONNECT_MAX_ATTEMPTS = 6;
+    private static final String CONSUME_QUEUE_FILE_NAME = "net.kosev.billing.consume";
+    private static final int CONSUME_BATCH_SIZE = 16;
+    private static final int CONSUME_MAX_IN_FLIGHT = 4;
+    private static final int CONSUME_MAX_RETRIES = 5;
+    private static final long CONSUME_RETRY_DELAY = 1000;
+
+    // create() moves INITIAL to SETUP and a successful setup to READY, a failed one to FAILED,
+    // from where create() may start over. Every queued operation moves READY to LOADING and back
+    // when it completes, destroy() moves any state to DESTROYED. All transitions are
+    // compare-and-set, so a destroyed instance is never brought back.
     private static final int STATE_INITIAL = 0;
     private static final int STATE_SETUP = 1;
     private static final int STATE_READY = 2;
     private static final int STATE_LOADING = 3;
+    private static final int STATE_FAILED = 4;
     private static final int STATE_DESTROYED = 20;
 
-    private volatile int mState = STATE_INITIAL;
+    private static final Object sWarmUpLock = new Object();
+    private static ServiceConnection sWarmUpConn = null;
+    private static volatile IBinder sWarmUpBinder = null;
+    private static ConsumeQueue sConsumeQueue = null;
+    // listeners waiting for queued tokens; shared like the queue, as any instance may consume them
+    private static final Map<String, List<PendingConsume>> sPendingConsumes = new HashMap<>();
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_INITIAL);
     private Context mContext = null;
     private String mPublicKey = null;
-    private IInAppBillingService mService = null;
-    private ServiceConnection mServiceConn = null;
-    private int mRequestCode;
-    private PurchaseListener mPurchaseListener;
-    private String mDeveloperPayload;
+    private volatile PurchaseVerifier mVerifier = null;
+    private volatile int mVerificationPolicy = VERIFICATION_POLICY_FAIL;
+    private volatile Executor mVerificationExecutor = null;
+    private volatile Executor mExecutor = null;
+    private volatile Executor mCallbackExecutor = null;
+    private volatile InventoryCache mInventoryCache = null;
+    private volatile SkuDetailsCache mSkuDetailsCache = null;
+    private volatile VerificationCache mVerificationCache = null;
+    private volatile BillingSupportCache mSupportCache = null;
+    private volatile BillingMetrics mMetrics = null;
+    private ExecutorService mOwnVerificationExecutor = null;
+    private ExecutorService mOwnExecutor = null;
+    private volatile IInAppBillingService mService = null;
+    private volatile ServiceConnection mServiceConn = null;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mSetupStarted = new AtomicBoolean();
+    private volatile int mSetupResponse = BILLING_RESPONSE_RESULT_OK;
+    private volatile int mReconnectAttempts = 0;
+    private final Runnable mReconnect = new Runnable() {
+        public void run() {
+            reconnect();
+        }
+    };
+    private final Map<String, PurchaseFlow> mPurchaseFlows = new LinkedHashMap<>();
+    private final ArrayDeque<Object> mPendingOperations = new ArrayDeque<>();
+    private final AtomicReference<Inventory> mInventory = new AtomicReference<>(Inventory.EMPTY);
+    private final List<InventoryChangeListener> mChangeListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean mConsuming = new AtomicBoolean();
+    private int mConsumeRetries = 0;
+    private final Runnable mConsumeTask = new Runnable() {
+        public void run() {
+            consumeQueued();
+        }
+    };
+    private final Runnable mConsumeRetry = new Runnable() {
+        public void run() {
+            scheduleConsume();
+        }
+    };
 
     public interface CreateListener {
         void onSuccess();
@@ -99,6 +185,26 @@ public class Billing {
         void onError(int response, Exception e);
     }
 
+    /**
+     * Called when a newly published inventory differs from the previous one.
+     */
+    public interface InventoryChangeListener {
+        void onInventoryChanged(Inventory inventory, InventoryDiff diff);
+    }
+
+    public interface ConsumeListener {
+        void onSuccess(Purchase purchase);
+        void onError(Purchase purchase, int response, Exception e);
+    }
+
+    /**
+     * Receives the verified owned items page by page while inventory is loading,
+     * before {@link InventoryListener#onSuccess(Inventory)} is called.
+     */
+    public interface PurchasesListener {
+        void onPurchases(String itemType, List<Purchase> purchases);
+    }
+
     public class BillingException extends Exception {
         private int mCode;
 
@@ -116,99 +222,879 @@ public class Billing {
         mPublicKey = publicKey;
     }
 
+    /**
+     * What to do when an owned item fails signature verification while loading inventory.
+     * {@link #VERIFICATION_POLICY_FAIL} (default) fails the whole load with
+     * {@link #BILLING_VERIFICATION_FAILED}, {@link #VERIFICATION_POLICY_SKIP} leaves the item
+     * out and reports it in {@link Inventory#getRejectedPurchases()}.
+     */
+    public void setVerificationPolicy(int policy) {
+        mVerificationPolicy = policy;
+    }
+
+    /**
+     * Executor for verifying owned items in parallel. By default a pool sized to the
+     * number of CPU cores is created on first use and shut down on {@link #destroy()}.
+     */
+    public void setVerificationExecutor(Executor executor) {
+        mVerificationExecutor = executor;
+    }
+
+    /**
+     * Executor for inventory loads and the service calls they make. By default Billing uses
+     * its own small thread pool, separate from the global {@code AsyncTask} queue, which is
+     * shut down on {@link #destroy()}.
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Executor that delivers listener callbacks, the main thread by default. It must run
+     * tasks one at a time in submission order.
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * Enables stale-while-revalidate inventory loading. {@link InventoryListener#onSuccess(Inventory)}
+     * is first called with the cached snapshot, then again with the refreshed inventory only if it
+     * changed. Refresh errors are not reported when a snapshot was delivered. The snapshot is read
+     * right away, it does not wait for {@link #create(CreateListener)} or earlier operations.
+     */
+    public void setInventoryCache(InventoryCache cache) {
+        mInventoryCache = cache;
+    }
+
+    /**
+     * Shares fetched sku details between inventory loads. Skus found in the cache are not
+     * requested again and concurrent loads of the same skus are merged into one request.
+     */
+    public void setSkuDetailsCache(SkuDetailsCache cache) {
+        mSkuDetailsCache = cache;
+    }
+
+    /**
+     * Remembers purchases that passed signature verification, so that loading them again
+     * skips RSA. Use a persistent cache to keep them across process restarts.
+     */
+    public void setVerificationCache(VerificationCache cache) {
+        mVerificationCache = cache;
+        PurchaseVerifier verifier = mVerifier;
+        if (verifier != null) verifier.setCache(cache);
+    }
+
+    /**
+     * Lets {@link #create(CreateListener)} skip the billing support checks on warm starts.
+     * Set it before calling {@code create()}.
+     */
+    public void setBillingSupportCache(BillingSupportCache cache) {
+        mSupportCache = cache;
+    }
+
+    /**
+     * Reports service call, parsing and verification timings and response codes to
+     * {@code metrics}, see {@link HistogramBillingMetrics}. Pass {@code null} to stop.
+     */
+    public void setMetrics(BillingMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Binds to the billing service ahead of time, for example from {@code Application.onCreate()},
+     * so that {@link #create(CreateListener)} can set up right away instead of waiting for the
+     * bind. The binding is kept for the lifetime of the process; calling this again does nothing.
+     */
+    public static void warmUp(Context context) {
+        synchronized (sWarmUpLock) {
+            if (sWarmUpConn != null) return;
+
+            ServiceConnection connection = new ServiceConnection() {
+                public void onServiceConnected(ComponentName name, IBinder service) {
+                    sWarmUpBinder = service;
+                }
+
+                public void onServiceDisconnected(ComponentName name) {
+                    // the system binds again once the service restarts
+                    sWarmUpBinder = null;
+                }
+            };
+
+            try {
+                if (context.getApplicationContext().bindService(newServiceIntent(), connection, Context.BIND_AUTO_CREATE)) {
+                    sWarmUpConn = connection;
+                }
+            } catch (SecurityException ignored) { }
+        }
+    }
+
+    /**
+     * Binds to the billing service and checks that it supports in-app products and subscriptions.
+     * The checks run in parallel on the {@link #setExecutor(Executor) executor} and the listener
+     * is called on the {@link #setCallbackExecutor(Executor) callback executor}.
+     * If the service disconnects later, Billing binds again with exponential backoff and queued
+     * operations wait until it is back.
+     *
+     * <p>If setup fails, operations fail right away with the same response until this is
+     * called again.
+     */
     public void create(final CreateListener listener) {
-        if (mState != STATE_INITIAL) return;
-        mState = STATE_SETUP;
+        if (!mState.compareAndSet(STATE_INITIAL, STATE_SETUP) && !mState.compareAndSet(STATE_FAILED, STATE_SETUP)) {
+            return;
+        }
 
         mServiceConn = new ServiceConnection() {
             public void onServiceDisconnected(ComponentName name) {
                 mService = null;
+                scheduleReconnect();
             }
 
             public void onServiceConnected(ComponentName name, IBinder service) {
-                mService = IInAppBillingService.Stub.asInterface(service);
+                Billing.this.onServiceConnected(service, listener);
+            }
+        };
 
-                try {
-                    int response = mService.isBillingSupported(VERSION, mContext.getPackageName(), TYPE_INAPP);
-                    if (response != BILLING_RESPONSE_RESULT_OK) {
-                        if (listener != null) listener.onError(response, null);
-                        return;
-                    }
+        try {
+            if (!bindService()) {
+                failSetup(listener, BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, null);
+                return;
+            }
+        } catch (SecurityException e) {
+            failSetup(listener, BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, e);
+            return;
+        }
 
-                    response = mService.isBillingSupported(VERSION, mContext.getPackageName(), TYPE_SUBS);
-                    if (response != BILLING_RESPONSE_RESULT_OK) {
-                        if (listener != null) listener.onError(response, null);
-                        return;
-                    }
+        // our own binding completes later and just replaces the warmed up binder
+        IBinder warmUpBinder = sWarmUpBinder;
+        if (warmUpBinder != null && warmUpBinder.isBinderAlive()) {
+            onServiceConnected(warmUpBinder, listener);
+        }
+    }
 
-                    mState = STATE_READY;
-                    if (listener != null) listener.onSuccess();
-                } catch (RemoteException e) {
-                    if (listener != null) listener.onError(BILLING_RESPONSE_RESULT_ERROR, e);
-                }
+    /**
+     * Same as {@link #create(CreateListener)}, completing the future instead.
+     */
+    public BillingFuture<Void> create() {
+        final BillingFuture<Void> future = new BillingFuture<>();
+        create(new CreateListener() {
+            public void onSuccess() {
+                future.set(null);
             }
-        };
 
+            public void onError(int response, Exception e) {
+                future.setError(response, e);
+            }
+        });
+        return future;
+    }
+
+    private void onServiceConnected(IBinder binder, CreateListener listener) {
+        mHandler.removeCallbacks(mReconnect);
+        mReconnectAttempts = 0;
+        if (rejectsOperations()) return;
+
+        mService = IInAppBillingService.Stub.asInterface(binder);
+        if (!mSetupStarted.compareAndSet(false, true)) {
+            // reconnected, resume whatever waited for the service
+            runPendingOperations();
+            scheduleConsume();
+            return;
+        }
+
+        // the connection callback runs on the main thread, keep the service calls off it
+        getExecutor().execute(new SetupTask(listener));
+    }
+
+    private void finishSetup(final CreateListener listener) {
+        if (!mState.compareAndSet(STATE_SETUP, STATE_READY)) {
+            // destroyed while checking, destroy() already failed the queued operations
+            failSetup(listener, BILLING_DISPOSED, null);
+            return;
+        }
+        if (listener != null) {
+            getCallbackExecutor().execute(new Runnable() {
+                public void run() {
+                    listener.onSuccess();
+                }
+            });
+        }
+        runPendingOperations();
+        // finish consumes left over from a previous run
+        scheduleConsume();
+    }
+
+    private void failSetup(final CreateListener listener, final int response, final Exception e) {
+        mSetupResponse = response;
+        if (mState.compareAndSet(STATE_SETUP, STATE_FAILED)) {
+            // drop the binding, a later create() binds again
+            unbind();
+            mSetupStarted.set(false);
+        }
+        if (listener != null) {
+            getCallbackExecutor().execute(new Runnable() {
+                public void run() {
+                    listener.onError(response, e);
+                }
+            });
+        }
+        failPendingOperations(response, e);
+    }
+
+    private void unbind() {
+        mHandler.removeCallbacks(mReconnect);
+        ServiceConnection connection = mServiceConn;
+        mServiceConn = null;
+        mService = null;
+        if (connection == null) return;
+        try {
+            mContext.unbindService(connection);
+        } catch (Exception ignored) { }
+    }
+
+    /**
+     * Whether operations fail right away instead of being queued: after destroy() and after a
+     * failed setup until create() is called again.
+     */
+    private boolean rejectsOperations() {
+        int state = mState.get();
+        return state == STATE_DESTROYED || state == STATE_FAILED;
+    }
+
+    private int getRejectResponse() {
+        return mState.get() == STATE_DESTROYED ? BILLING_DISPOSED : mSetupResponse;
+    }
+
+    private boolean bindService() {
+        return mContext.bindService(newServiceIntent(), mServiceConn, Context.BIND_AUTO_CREATE);
+    }
+
+    private static Intent newServiceIntent() {
         Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
         serviceIntent.setPackage("com.android.vending");
+        return serviceIntent;
+    }
 
-        try {
-            if (!mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE)) {
-                if (listener != null) listener.onError(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, null);
-            }
-        } catch (SecurityException e) {
-            if (listener != null) listener.onError(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, e);
+    /**
+     * Schedules the next bind attempt. The delay doubles with every attempt and also serves as
+     * the timeout of the previous one. Queued operations are failed with
+     * {@link #BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE} once the first attempts are used up,
+     * later ones wait for the next attempt.
+     */
+    private void scheduleReconnect() {
+        if (rejectsOperations()) return;
+
+        if (mReconnectAttempts == RECONNECT_MAX_ATTEMPTS) {
+            failPendingOperations(BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE, null);
         }
+        long delay = Math.min(RECONNECT_INITIAL_DELAY << Math.min(mReconnectAttempts, 16), RECONNECT_MAX_DELAY);
+        mReconnectAttempts++;
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.postDelayed(mReconnect, delay);
     }
 
-    public void destroy() {
+    private void reconnect() {
+        ServiceConnection connection = mServiceConn;
+        if (rejectsOperations() || mService != null || connection == null) return;
+
         try {
-            mContext.unbindService(mServiceConn);
+            mContext.unbindService(connection);
         } catch (Exception ignored) { }
-        mServiceConn = null;
-        mService = null;
-        mState = STATE_DESTROYED;
+        try {
+            bindService();
+        } catch (SecurityException ignored) { }
+        scheduleReconnect();
+    }
+
+    private int isBillingSupported(String itemType) throws RemoteException, BillingException {
+        IInAppBillingService service = getService();
+        long start = System.nanoTime();
+        int response = BILLING_UNKNOWN_ERROR;
+        try {
+            response = service.isBillingSupported(VERSION, mContext.getPackageName(), itemType);
+            return response;
+        } finally {
+            recordServiceCall(BillingMetrics.CALL_IS_BILLING_SUPPORTED, start, response);
+        }
+    }
+
+    /**
+     * Unbinds from the service and fails everything still waiting with {@link #BILLING_DISPOSED},
+     * including a purchase flow that has not returned yet. Safe to call from any thread and
+     * more than once.
+     */
+    public void destroy() {
+        if (mState.getAndSet(STATE_DESTROYED) == STATE_DESTROYED) return;
+
+        unbind();
+        mHandler.removeCallbacks(mConsumeRetry);
+        failPendingOperations(BILLING_DISPOSED, null);
+        List<PurchaseFlow> flows;
+        synchronized (mPurchaseFlows) {
+            flows = new ArrayList<>(mPurchaseFlows.values());
+            mPurchaseFlows.clear();
+        }
+        for (PurchaseFlow flow : flows) {
+            recordCancelled(BillingMetrics.OPERATION_PURCHASE);
+            if (flow.mListener != null) flow.mListener.onError(BILLING_DISPOSED, null);
+        }
+        // queued tokens stay in the journal and are consumed by another or the next instance
+        List<PendingConsume> consumes = new ArrayList<>();
+        synchronized (sPendingConsumes) {
+            Iterator<List<PendingConsume>> lists = sPendingConsumes.values().iterator();
+            while (lists.hasNext()) {
+                List<PendingConsume> waiting = lists.next();
+                Iterator<PendingConsume> requests = waiting.iterator();
+                while (requests.hasNext()) {
+                    PendingConsume request = requests.next();
+                    if (request.mOwner == this) {
+                        consumes.add(request);
+                        requests.remove();
+                    }
+                }
+                if (waiting.isEmpty()) lists.remove();
+            }
+        }
+        for (PendingConsume request : consumes) {
+            request.deliver(BILLING_DISPOSED, null);
+        }
+
+        synchronized (this) {
+            if (mOwnVerificationExecutor != null) {
+                mOwnVerificationExecutor.shutdown();
+                mOwnVerificationExecutor = null;
+            }
+            if (mOwnExecutor != null) {
+                mOwnExecutor.shutdown();
+                mOwnExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Latest inventory delivered to an {@link InventoryListener}, or an empty one with version 0
+     * before the first load completes. Lock-free and safe to call from any thread.
+     */
+    public Inventory getInventory() {
+        return mInventory.get();
+    }
+
+    /**
+     * Version of {@link #getInventory()}. It only grows, so a reader can check whether the
+     * inventory it holds is still current without touching it.
+     */
+    public long getInventoryVersion() {
+        return mInventory.get().getVersion();
+    }
+
+    /**
+     * Registers a listener that is called on the callback executor with the difference to the
+     * previous inventory whenever a load publishes one with changed purchases or sku details.
+     */
+    public void addInventoryChangeListener(InventoryChangeListener listener) {
+        mChangeListeners.add(listener);
+    }
+
+    public void removeInventoryChangeListener(InventoryChangeListener listener) {
+        mChangeListeners.remove(listener);
+    }
+
+    /**
+     * Publishes a loaded inventory. Sku details it did not request or failed to load are
+     * carried over from the current inventory, so loads of different skus do not report
+     * each other's details as removed.
+     *
+     * @param skus the skus the load requested
+     */
+    private Inventory publishInventory(Inventory inventory, Collection<String> skus) {
+        Inventory current;
+        Inventory next;
+        do {
+            current = mInventory.get();
+            next = inventory.withSkuDetailsFrom(current, skus).withVersion(current.getVersion() + 1);
+        } while (!mInventory.compareAndSet(current, next));
+
+        notifyInventoryChanged(current, next);
+        return next;
+    }
+
+    /**
+     * Publishes a cached snapshot, unless an inventory was published before.
+     *
+     * @return the published snapshot, or {@code null} if it was not published
+     */
+    private Inventory publishSnapshot(Inventory snapshot) {
+        Inventory current = mInventory.get();
+        if (current.getVersion() != 0) return null;
+        Inventory next = snapshot.withVersion(current.getVersion() + 1);
+        if (!mInventory.compareAndSet(current, next)) return null;
+
+        notifyInventoryChanged(current, next);
+        return next;
+    }
+
+    private void notifyInventoryChanged(Inventory previous, final Inventory published) {
+        if (mChangeListeners.isEmpty()) return;
+
+        final InventoryDiff diff = new InventoryDiff(previous, published);
+        if (diff.isEmpty()) return;
+        getCallbackExecutor().execute(new Runnable() {
+            public void run() {
+                for (InventoryChangeListener listener : mChangeListeners) {
+                    listener.onInventoryChanged(published, diff);
+                }
+            }
+        });
     }
 
     public void loadInventory(ArrayList<String> skus, InventoryListener listener) {
-        if (mState != STATE_READY) return;
-        mState = STATE_LOADING;
+        loadInventory(skus, listener, null);
+    }
+
+    /**
+     * Same as {@link #loadInventory(ArrayList, InventoryListener)}, but also streams every page
+     * of owned items to {@code purchasesListener} as soon as it is fetched and verified.
+     * Pages already delivered are not taken back if a later page fails.
+     *
+     * <p>Calls made before {@link #create(CreateListener)} completes or while another operation
+     * is running are queued. Loads waiting in the queue are merged into a single load of all
+     * their skus.
+     */
+    public void loadInventory(ArrayList<String> skus, InventoryListener listener, PurchasesListener purchasesListener) {
+        SnapshotListener snapshot = newSnapshotListener(skus, listener);
+        if (queueLoad(skus, snapshot != null ? snapshot : listener, purchasesListener, false) == null) {
+            if (listener != null) listener.onError(getRejectResponse(), null);
+            return;
+        }
+        if (snapshot != null) getExecutor().execute(snapshot);
+        runPendingOperations();
+    }
+
+    /**
+     * Same as {@link #loadInventory(ArrayList, InventoryListener)}, completing the future instead.
+     * With an {@link #setInventoryCache(InventoryCache) inventory cache} the future completes
+     * with the cached snapshot when there is one.
+     *
+     * <p>Cancelling the future drops the load while it is queued. A running load is stopped
+     * before its next billing service call or verification batch, unless it was merged with
+     * a load someone else still waits for.
+     */
+    public BillingFuture<Inventory> loadInventory(ArrayList<String> skus) {
+        final BillingFuture<Inventory> future = new BillingFuture<>();
+        InventoryListener futureListener = new InventoryListener() {
+            public void onSuccess(Inventory inventory) {
+                future.set(inventory);
+            }
 
-        LoadInventoryTask task = new LoadInventoryTask();
-        task.execute(skus, listener);
+            public void onError(int response, Exception e) {
+                future.setError(response, e);
+            }
+        };
+        SnapshotListener snapshot = newSnapshotListener(skus, futureListener);
+        final InventoryListener listener = snapshot != null ? snapshot : futureListener;
+
+        final PendingLoad load = queueLoad(skus, listener, null, true);
+        if (load == null) {
+            future.setError(getRejectResponse(), null);
+            return future;
+        }
+        future.setCanceller(new Runnable() {
+            public void run() {
+                cancelLoad(load, listener);
+            }
+        });
+        if (snapshot != null) getExecutor().execute(snapshot);
+        runPendingOperations();
+        return future;
+    }
+
+    /**
+     * Adds the skus and listeners to the load waiting in the queue, or queues a new one.
+     *
+     * @param cancellable whether the listener may be taken back with {@link #cancelLoad}
+     * @return the load, or {@code null} once destroyed
+     */
+    private PendingLoad queueLoad(ArrayList<String> skus, InventoryListener listener, PurchasesListener purchasesListener,
+                                  boolean cancellable) {
+        synchronized (mPendingOperations) {
+            if (rejectsOperations()) return null;
+
+            PendingLoad load = null;
+            for (Object operation : mPendingOperations) {
+                if (operation instanceof PendingLoad) {
+                    load = (PendingLoad) operation;
+                    break;
+                }
+            }
+            if (load == null) {
+                load = new PendingLoad();
+                mPendingOperations.add(load);
+            }
+            load.add(skus, listener, purchasesListener, cancellable);
+            return load;
+        }
     }
 
+    /**
+     * @return a listener that first gets the cached snapshot once it is run, or {@code null}
+     * without an inventory cache
+     */
+    private SnapshotListener newSnapshotListener(ArrayList<String> skus, InventoryListener listener) {
+        InventoryCache cache = mInventoryCache;
+        if (cache == null || listener == null) return null;
+        return new SnapshotListener(cache, skus, listener);
+    }
+
+    /**
+     * Takes back the listener of a cancelled future. Once nobody waits for the load, it is
+     * dropped from the queue or, if already running, interrupted.
+     */
+    private void cancelLoad(PendingLoad load, InventoryListener listener) {
+        synchronized (mPendingOperations) {
+            if (!load.remove(listener)) return;
+            if (mPendingOperations.remove(load)) {
+                recordCancelled(BillingMetrics.OPERATION_LOAD_INVENTORY);
+                return;
+            }
+        }
+        load.cancel();
+    }
+
+    /**
+     * Starts the purchase flow for the sku. Calls made while another operation is running
+     * are queued and launched in order once it completes. A started flow does not hold up
+     * other operations, so several flows can wait for their results at the same time, with
+     * the same or with different request codes.
+     */
     public void launchPurchaseFlow(Activity activity, String sku, String itemType, int requestCode, PurchaseListener listener) {
-        if (mState != STATE_READY) return;
-        mState = STATE_LOADING;
-        mPurchaseListener = null;
+        synchronized (mPendingOperations) {
+            if (!rejectsOperations()) {
+                mPendingOperations.add(new PendingPurchase(activity, sku, itemType, requestCode, listener));
+                listener = null;
+            }
+        }
+
+        if (listener != null) {
+            listener.onError(getRejectResponse(), null);
+            return;
+        }
+        runPendingOperations();
+    }
+
+    /**
+     * Same as {@link #launchPurchaseFlow(Activity, String, String, int, PurchaseListener)},
+     * completing the future instead. Cancelling the future drops the purchase while it is
+     * queued. The Play Store screen of a started flow stays up, but its result is ignored.
+     */
+    public BillingFuture<Purchase> launchPurchaseFlow(Activity activity, String sku, String itemType, int requestCode) {
+        final BillingFuture<Purchase> future = new BillingFuture<>();
+        final PurchaseListener listener = new PurchaseListener() {
+            public void onSuccess(Purchase purchase) {
+                future.set(purchase);
+            }
+
+            public void onError(int response, Exception e) {
+                future.setError(response, e);
+            }
+        };
+        future.setCanceller(new Runnable() {
+            public void run() {
+                cancelPurchase(listener);
+            }
+        });
+        launchPurchaseFlow(activity, sku, itemType, requestCode, listener);
+        return future;
+    }
+
+    private void cancelPurchase(PurchaseListener listener) {
+        synchronized (mPendingOperations) {
+            for (Iterator<Object> it = mPendingOperations.iterator(); it.hasNext(); ) {
+                Object operation = it.next();
+                if (operation instanceof PendingPurchase && ((PendingPurchase) operation).mListener == listener) {
+                    it.remove();
+                    recordCancelled(BillingMetrics.OPERATION_PURCHASE);
+                    return;
+                }
+            }
+        }
+        synchronized (mPurchaseFlows) {
+            for (Iterator<PurchaseFlow> it = mPurchaseFlows.values().iterator(); it.hasNext(); ) {
+                if (it.next().mListener == listener) {
+                    it.remove();
+                    recordCancelled(BillingMetrics.OPERATION_PURCHASE);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #consume(Purchase, ConsumeListener)}, completing the future instead.
+     * The consume is journaled right away, so cancelling the future only stops waiting for it.
+     */
+    public BillingFuture<Purchase> consume(Purchase purchase) {
+        final BillingFuture<Purchase> future = new BillingFuture<>();
+        consume(purchase, new ConsumeListener() {
+            public void onSuccess(Purchase purchase) {
+                future.set(purchase);
+            }
+
+            public void onError(Purchase purchase, int response, Exception e) {
+                future.setError(response, e);
+            }
+        });
+        return future;
+    }
+
+    public void consume(Purchase purchase, ConsumeListener listener) {
+        consume(Collections.singletonList(purchase), listener);
+    }
+
+    /**
+     * Consumes in-app purchases so the items can be bought again. Grant the items to the user
+     * before calling this: the tokens are written to a journal before it returns and consumed
+     * in the background in batches, also when the process dies in between, in which case they
+     * are picked up after the next {@link #create(CreateListener)}. Transient errors are retried
+     * with backoff and a purchase that is already consumed is reported as a success, so an
+     * item is never consumed twice.
+     *
+     * <p>The listener is called once for every purchase. It gets the last transient error if
+     * retries run out; the token then stays queued for the next start.
+     */
+    public void consume(List<Purchase> purchases, ConsumeListener listener) {
+        final Executor callbackExecutor = getCallbackExecutor();
+        if (rejectsOperations()) {
+            int response = getRejectResponse();
+            for (Purchase purchase : purchases) {
+                if (listener != null) listener.onError(purchase, response, null);
+            }
+            return;
+        }
+
+        List<PendingConsume> requests = new ArrayList<>(purchases.size());
+        synchronized (sPendingConsumes) {
+            for (Purchase purchase : purchases) {
+                PendingConsume request = new PendingConsume(this, purchase, listener, callbackExecutor);
+                if (TextUtils.isEmpty(purchase.purchaseToken)) {
+                    request.deliver(BILLING_RESPONSE_RESULT_DEVELOPER_ERROR, null);
+                    continue;
+                }
+
+                List<PendingConsume> waiting = sPendingConsumes.get(purchase.purchaseToken);
+                if (waiting == null) {
+                    waiting = new ArrayList<>(1);
+                    sPendingConsumes.put(purchase.purchaseToken, waiting);
+                }
+                waiting.add(request);
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) return;
+
+        // journaled on the calling thread, so neither process death nor destroy() loses it
+        ConsumeQueue queue = getConsumeQueue();
+        for (PendingConsume request : requests) {
+            queue.add(request.mPurchase.purchaseToken, request.mPurchase.sku);
+        }
+        getExecutor().execute(mConsumeTask);
+    }
+
+    private void runPendingOperations() {
+        while (true) {
+            Object operation;
+            synchronized (mPendingOperations) {
+                // the lock only keeps a claimed operation and the queue consistent, the state
+                // itself is claimed with a CAS so that it also excludes destroy() and completions
+                if (mService == null || mPendingOperations.isEmpty()) return;
+                if (!mState.compareAndSet(STATE_READY, STATE_LOADING)) return;
+                operation = mPendingOperations.poll();
+            }
+
+            if (operation instanceof PendingLoad) {
+                PendingLoad load = (PendingLoad) operation;
+                getExecutor().execute(new LoadInventoryTask(load));
+                return;
+            }
+
+            // a purchase only holds the queue until its flow is started
+            PendingPurchase purchase = (PendingPurchase) operation;
+            startPurchaseFlow(purchase.mActivity, purchase.mSku, purchase.mItemType, purchase.mRequestCode, purchase.mListener);
+        }
+    }
+
+    private void failPendingOperations(int response, Exception e) {
+        List<Object> operations;
+        synchronized (mPendingOperations) {
+            operations = new ArrayList<>(mPendingOperations);
+            mPendingOperations.clear();
+        }
+
+        for (Object operation : operations) {
+            if (operation instanceof PendingLoad) {
+                recordCancelled(BillingMetrics.OPERATION_LOAD_INVENTORY);
+                postError((PendingLoad) operation, response, e);
+            } else {
+                recordCancelled(BillingMetrics.OPERATION_PURCHASE);
+                postError(((PendingPurchase) operation).mListener, response, e);
+            }
+        }
+    }
 
+    private void postError(final InventoryListener listener, final int response, final Exception e) {
+        getCallbackExecutor().execute(new Runnable() {
+            public void run() {
+                listener.onError(response, e);
+            }
+        });
+    }
+
+    private void postError(final PurchaseListener listener, final int response, final Exception e) {
+        if (listener == null) return;
+
+        getCallbackExecutor().execute(new Runnable() {
+            public void run() {
+                listener.onError(response, e);
+            }
+        });
+    }
+
+    /**
+     * Gets a buy intent and starts its activity. Once started, the flow waits for
+     * {@link #onActivityResult(int, int, Intent)} and the next operation can run.
+     * The queue is also drained on worker threads, so the activity may be started
+     * later on the main thread.
+     */
+    private void startPurchaseFlow(Activity activity, String sku, String itemType, int requestCode, PurchaseListener listener) {
+        PurchaseFlow flow = null;
         try {
-            mDeveloperPayload = generateDeveloperPayload();
-            Bundle buyIntentBundle = mService.getBuyIntent(VERSION, mContext.getPackageName(), sku, itemType, mDeveloperPayload);
-            int response = getResponseCodeFromBundle(buyIntentBundle);
+            String developerPayload = generateDeveloperPayload();
+            long start = System.nanoTime();
+            Bundle buyIntentBundle;
+            int response = BILLING_UNKNOWN_ERROR;
+            try {
+                buyIntentBundle = getService().getBuyIntent(VERSION, mContext.getPackageName(), sku, itemType, developerPayload);
+                response = getResponseCodeFromBundle(buyIntentBundle);
+            } finally {
+                recordServiceCall(BillingMetrics.CALL_GET_BUY_INTENT, start, response);
+            }
             if (response == BILLING_RESPONSE_RESULT_OK) {
                 PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
-                mRequestCode = requestCode;
-                mPurchaseListener = listener;
-                //noinspection ConstantConditions
-                activity.startIntentSenderForResult(pendingIntent.getIntentSender(), requestCode, new Intent(), 0, 0, 0);
+                flow = new PurchaseFlow(requestCode, developerPayload, listener);
+                synchronized (mPurchaseFlows) {
+                    mPurchaseFlows.put(developerPayload, flow);
+                }
+                if (mState.get() == STATE_DESTROYED && claimPurchaseFlow(flow)) {
+                    // destroy() ran before the flow was registered
+                    postError(listener, BILLING_DISPOSED, null);
+                    return;
+                }
+                startBuyActivity(activity, pendingIntent, flow);
+                finishOperation();
             } else {
-                mState = STATE_READY;
-                if (listener != null) listener.onError(response, null);
+                finishOperation();
+                postError(listener, response, null);
             }
         } catch (Exception e) {
-            mState = STATE_READY;
-            if (listener != null) listener.onError(BILLING_PURCHASE_ERROR, e);
+            finishOperation();
+            // a flow that destroy() or a result already claimed has been delivered there
+            if (flow == null || claimPurchaseFlow(flow)) {
+                postError(listener, BILLING_PURCHASE_ERROR, e);
+            }
         }
     }
 
+    private void startBuyActivity(final Activity activity, final PendingIntent pendingIntent, final PurchaseFlow flow)
+            throws IntentSender.SendIntentException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            //noinspection ConstantConditions
+            activity.startIntentSenderForResult(pendingIntent.getIntentSender(), flow.mRequestCode, new Intent(), 0, 0, 0);
+            return;
+        }
+
+        // posts run in order, so flows still start in the order they were launched
+        mHandler.post(new Runnable() {
+            public void run() {
+                synchronized (mPurchaseFlows) {
+                    // destroy() or a cancelled future claimed it meanwhile
+                    if (!mPurchaseFlows.containsKey(flow.mDeveloperPayload)) return;
+                }
+                try {
+                    //noinspection ConstantConditions
+                    activity.startIntentSenderForResult(pendingIntent.getIntentSender(), flow.mRequestCode, new Intent(), 0, 0, 0);
+                } catch (Exception e) {
+                    if (claimPurchaseFlow(flow)) postError(flow.mListener, BILLING_PURCHASE_ERROR, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers the result of a purchase flow started with {@code requestCode}. Several flows
+     * can wait at the same time: a result is matched by the developer payload of its purchase,
+     * a result without one, such as a cancellation or an error response, goes to the latest flow
+     * started with the request code. Results whose payload matches no waiting flow, results for
+     * other request codes and repeated results are ignored, so every listener is called exactly
+     * once, also when this races with {@link #destroy()}.
+     */
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode != mRequestCode) return;
+        String developerPayload = null;
+        if (resultCode == Activity.RESULT_OK && data != null) {
+            developerPayload = getDeveloperPayload(data.getStringExtra(RESPONSE_INAPP_PURCHASE_DATA));
+        }
+
+        PurchaseFlow flow = claimPurchaseFlow(requestCode, developerPayload);
+        if (flow == null) return;
 
-        mState = STATE_READY;
-        PurchaseListener listener = mPurchaseListener;
+        deliverActivityResult(flow, resultCode, data);
+    }
 
+    private PurchaseFlow claimPurchaseFlow(int requestCode, String developerPayload) {
+        synchronized (mPurchaseFlows) {
+            PurchaseFlow flow = null;
+            if (developerPayload != null) {
+                // the purchase of a cancelled or already delivered flow must not take another one
+                flow = mPurchaseFlows.get(developerPayload);
+                if (flow != null && flow.mRequestCode != requestCode) flow = null;
+            } else {
+                for (PurchaseFlow candidate : mPurchaseFlows.values()) {
+                    if (candidate.mRequestCode == requestCode) flow = candidate;
+                }
+            }
+            if (flow != null) mPurchaseFlows.remove(flow.mDeveloperPayload);
+            return flow;
+        }
+    }
+
+    private boolean claimPurchaseFlow(PurchaseFlow flow) {
+        synchronized (mPurchaseFlows) {
+            return mPurchaseFlows.remove(flow.mDeveloperPayload) != null;
+        }
+    }
+
+    /**
+     * Reads only the developer payload of the purchase data, the whole purchase is parsed
+     * once the flow it belongs to is known.
+     */
+    private static String getDeveloperPayload(String purchaseData) {
+        if (purchaseData == null) return null;
+        try {
+            JsonFieldReader reader = new JsonFieldReader(purchaseData);
+            while (reader.nextField()) {
+                if ("developerPayload".equals(reader.name())) return reader.stringValue();
+            }
+        } catch (JSONException ignored) { }
+        return null;
+    }
+
+    /**
+     * Ends the running operation. Fails without effect once destroyed.
+     */
+    private void finishOperation() {
+        mState.compareAndSet(STATE_LOADING, STATE_READY);
+    }
+
+    private void deliverActivityResult(PurchaseFlow flow, int resultCode, Intent data) {
+        PurchaseListener listener = flow.mListener;
         if (resultCode == Activity.RESULT_OK) {
             if (data != null) {
                 int response = getResponseCodeFromBundle(data.getExtras());
@@ -217,8 +1103,15 @@ public class Billing {
                     String signature = data.getStringExtra(RESPONSE_INAPP_SIGNATURE);
                     if (purchaseData != null && signature != null) {
                         try {
+                            long start = System.nanoTime();
                             Purchase purchase = new Purchase(purchaseData, signature);
-                            final boolean isVerified = Security.verifyPurchase(mPublicKey, purchaseData, signature) && purchase.developerPayload.equals(mDeveloperPayload);
+                            recordParse(1, start);
+
+                            start = System.nanoTime();
+                            boolean isSignatureValid = getVerifier().verifyPurchase(purchaseData, signature);
+                            recordVerify(1, start);
+
+                            final boolean isVerified = isSignatureValid && purchase.developerPayload.equals(flow.mDeveloperPayload);
                             if (isVerified) {
                                 if (listener != null) listener.onSuccess(purchase);
                             } else {
@@ -231,69 +1124,457 @@ public class Billing {
                         if (listener != null) listener.onError(BILLING_PURCHASE_ERROR, null);
                     }
                 } else {
+                    if (response == BILLING_RESPONSE_RESULT_USER_CANCELED) recordCancelled(BillingMetrics.OPERATION_PURCHASE);
                     if (listener != null) listener.onError(response, null);
                 }
             } else {
                 if (listener != null) listener.onError(BILLING_PURCHASE_ERROR, null);
             }
+        } else if (resultCode == Activity.RESULT_CANCELED) {
+            recordCancelled(BillingMetrics.OPERATION_PURCHASE);
+            if (listener != null) listener.onError(BILLING_RESPONSE_RESULT_USER_CANCELED, null);
+        } else {
+            if (listener != null) listener.onError(BILLING_PURCHASE_ERROR, null);
+        }
+    }
+
+    private void getSkuDetails(Inventory.Builder inventory, ArrayList<String> skus, final String itemType) throws RemoteException, JSONException, BillingException, InterruptedException {
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache == null || skus == null) {
+            fetchSkuDetails(inventory, skus, itemType);
+            return;
+        }
+
+        try {
+            cache.load(inventory, itemType, skus, new SkuDetailsCache.Fetcher() {
+                public Inventory fetch(ArrayList<String> missing) throws Exception {
+                    Inventory.Builder result = new Inventory.Builder();
+                    fetchSkuDetails(result, missing, itemType);
+                    return result.build();
+                }
+            });
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
         }
     }
 
-    private void getSkuDetails(Inventory inventory, ArrayList<String> skus, String itemType) throws RemoteException, JSONException, BillingException {
-        if (mContext == null || mService == null) {
-            throw new BillingException(BILLING_DISPOSED);
+    private void fetchSkuDetails(Inventory.Builder inventory, ArrayList<String> skus, String itemType) throws RemoteException, JSONException, BillingException, InterruptedException {
+        if (skus == null || skus.size() <= SKU_DETAILS_CHUNK_SIZE) {
+            for (SkuDetails details : requestSkuDetails(skus, itemType)) {
+                inventory.addSkuDetails(details);
+            }
+            return;
+        }
+
+        // the service only accepts a limited number of skus per request
+        List<SkuDetailsChunk> chunks = new ArrayList<>();
+        for (int i = 0; i < skus.size(); i += SKU_DETAILS_CHUNK_SIZE) {
+            ArrayList<String> chunkSkus = new ArrayList<>(skus.subList(i, Math.min(i + SKU_DETAILS_CHUNK_SIZE, skus.size())));
+            chunks.add(new SkuDetailsChunk(chunkSkus, itemType));
+        }
+
+        try {
+            Tasks.invokeAll(getExecutor(), chunks, SKU_DETAILS_MAX_IN_FLIGHT);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        checkInterrupted();
+
+        SkuDetailsChunk failed = null;
+        int failedCount = 0;
+        for (SkuDetailsChunk chunk : chunks) {
+            if (chunk.mException instanceof InterruptedException) {
+                throw (InterruptedException) chunk.mException;
+            }
+            if (chunk.mException == null) {
+                for (SkuDetails details : chunk.mResult) {
+                    inventory.addSkuDetails(details);
+                }
+            } else {
+                inventory.addFailedSkus(chunk.mSkus);
+                failedCount += chunk.mSkus.size();
+                if (failed == null) failed = chunk;
+            }
+        }
+
+        // partial results are reported through Inventory.getFailedSkus()
+        if (failed != null && failedCount == skus.size()) {
+            rethrow(failed.mException);
         }
+    }
 
+    private List<SkuDetails> requestSkuDetails(ArrayList<String> skus, String itemType) throws RemoteException, JSONException, BillingException, InterruptedException {
+        checkInterrupted();
+        IInAppBillingService service = getService();
         Bundle skuParams = new Bundle();
         skuParams.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skus);
 
-        Bundle skuResult = mService.getSkuDetails(VERSION, mContext.getPackageName(), itemType, skuParams);
+        long start = System.nanoTime();
+        Bundle skuResult;
+        int response = BILLING_UNKNOWN_ERROR;
+        try {
+            skuResult = service.getSkuDetails(VERSION, mContext.getPackageName(), itemType, skuParams);
+            response = getResponseCodeFromBundle(skuResult);
+        } finally {
+            recordServiceCall(BillingMetrics.CALL_GET_SKU_DETAILS, start, response);
+        }
 
-        int response = getResponseCodeFromBundle(skuResult);
         if (response == BILLING_RESPONSE_RESULT_OK) {
             ArrayList<String> items = skuResult.getStringArrayList(RESPONSE_GET_SKU_DETAILS_LIST);
+            List<SkuDetails> result = new ArrayList<>(items != null ? items.size() : 0);
 
             if (items != null) {
+                Map<String, SkuDetails> known = getKnownSkuDetails(skus);
+                int parsed = 0;
+                start = System.nanoTime();
                 for (String item : items) {
-                    SkuDetails sku = new SkuDetails(item);
-                    inventory.addSkuDetails(sku);
+                    SkuDetails details = known.get(item);
+                    if (details == null) {
+                        details = new SkuDetails(item);
+                        parsed++;
+                    }
+                    result.add(details);
                 }
+                recordParse(parsed, start);
             }
+            return result;
         } else {
             throw new BillingException(response);
         }
     }
 
-    private void getPurchases(Inventory inventory, String itemType) throws RemoteException, JSONException, BillingException {
-        if (mContext == null || mService == null) {
-            throw new BillingException(BILLING_DISPOSED);
+    /**
+     * Details of the skus in the current snapshot keyed by their raw JSON, so that unchanged
+     * ones are not parsed again.
+     */
+    private Map<String, SkuDetails> getKnownSkuDetails(List<String> skus) {
+        Inventory current = mInventory.get();
+        if (skus == null || current.getAllSkuDetails().isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, SkuDetails> known = new HashMap<>();
+        for (String sku : skus) {
+            SkuDetails details = current.getSkuDetails(sku);
+            if (details != null) known.put(details.originalJson, details);
         }
+        return known;
+    }
 
-        Bundle ownedItems = mService.getPurchases(VERSION, mContext.getPackageName(), itemType, null);
+    /**
+     * Stops a cancelled load between billing service calls, which cannot be interrupted themselves.
+     */
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+    }
+
+    private static void rethrow(Throwable e) throws RemoteException, JSONException, BillingException, InterruptedException {
+        if (e instanceof RemoteException) throw (RemoteException) e;
+        if (e instanceof JSONException) throw (JSONException) e;
+        if (e instanceof BillingException) throw (BillingException) e;
+        if (e instanceof InterruptedException) throw (InterruptedException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        throw new RuntimeException(e);
+    }
+
+    private void getPurchases(Inventory.Builder inventory, String itemType, PurchasesListener listener) throws RemoteException, JSONException, BillingException, InterruptedException {
+        IInAppBillingService service = getService();
+
+        String continuationToken = null;
+        do {
+            checkInterrupted();
+            long start = System.nanoTime();
+            Bundle ownedItems;
+            int response = BILLING_UNKNOWN_ERROR;
+            try {
+                ownedItems = service.getPurchases(VERSION, mContext.getPackageName(), itemType, continuationToken);
+                response = getResponseCodeFromBundle(ownedItems);
+            } finally {
+                recordServiceCall(BillingMetrics.CALL_GET_PURCHASES, start, response);
+            }
+
+            if (response != BILLING_RESPONSE_RESULT_OK) {
+                throw new BillingException(response);
+            }
 
-        int response = getResponseCodeFromBundle(ownedItems);
-        if (response == BILLING_RESPONSE_RESULT_OK) {
             ArrayList<String> ownedSkus = ownedItems.getStringArrayList(RESPONSE_INAPP_ITEM_LIST);
             ArrayList<String> purchaseDataList = ownedItems.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST);
             ArrayList<String> signatureList = ownedItems.getStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST);
 
             if (ownedSkus != null && purchaseDataList != null && signatureList != null) {
-                for (int i = 0; i < purchaseDataList.size(); i++) {
+                int count = purchaseDataList.size();
+
+                // purchases unchanged since the current snapshot were parsed and verified already
+                Inventory current = mInventory.get();
+                Purchase[] known = new Purchase[count];
+                List<String> unknownData = new ArrayList<>(count);
+                List<String> unknownSignatures = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
                     String purchaseData = purchaseDataList.get(i);
                     String signature = signatureList.get(i);
-                    //String sku = ownedSkus.get(i);
-
-                    if (Security.verifyPurchase(mPublicKey, purchaseData, signature)) {
-                        Purchase purchase = new Purchase(purchaseData, signature);
-                        inventory.addPurchase(purchase);
+                    Purchase purchase = i < ownedSkus.size() ? current.getPurchase(ownedSkus.get(i)) : null;
+                    if (purchase != null && purchase.originalJson.equals(purchaseData) && purchase.signature.equals(signature)) {
+                        known[i] = purchase;
                     } else {
-                        throw new BillingException(BILLING_VERIFICATION_FAILED);
+                        unknownData.add(purchaseData);
+                        unknownSignatures.add(signature);
+                    }
+                }
+
+                boolean[] verified = new boolean[0];
+                if (!unknownData.isEmpty()) {
+                    start = System.nanoTime();
+                    verified = getVerifier().verifyPurchases(unknownData, unknownSignatures,
+                            getVerificationExecutor(), VERIFICATION_PARALLELISM);
+                    recordVerify(unknownData.size(), start);
+                }
+
+                start = System.nanoTime();
+                List<Purchase> page = new ArrayList<>(count);
+                int parsed = 0;
+                for (int i = 0, next = 0; i < count; i++) {
+                    Purchase purchase = known[i];
+                    if (purchase == null) {
+                        String purchaseData = purchaseDataList.get(i);
+                        if (verified[next++]) {
+                            purchase = new Purchase(purchaseData, signatureList.get(i));
+                            parsed++;
+                        } else if (mVerificationPolicy == VERIFICATION_POLICY_SKIP) {
+                            inventory.addRejectedPurchase(purchaseData);
+                            continue;
+                        } else {
+                            throw new BillingException(BILLING_VERIFICATION_FAILED);
+                        }
                     }
+                    inventory.addPurchase(purchase);
+                    page.add(purchase);
+                }
+                recordParse(parsed, start);
+
+                if (listener != null && !page.isEmpty()) {
+                    listener.onPurchases(itemType, page);
                 }
             }
-        } else {
-            throw new BillingException(response);
+
+            continuationToken = ownedItems.getString(RESPONSE_INAPP_CONTINUATION_TOKEN);
+        } while (!TextUtils.isEmpty(continuationToken));
+    }
+
+    /**
+     * @throws BillingException with {@link #BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE} while
+     * reconnecting or {@link #BILLING_DISPOSED} after {@link #destroy()}
+     */
+    private IInAppBillingService getService() throws BillingException {
+        IInAppBillingService service = mService;
+        if (service == null) {
+            throw new BillingException(mState.get() == STATE_DESTROYED ? BILLING_DISPOSED : BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
         }
+        return service;
+    }
+
+    private void recordServiceCall(String call, long startNanos, int response) {
+        BillingMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onServiceCall(call, System.nanoTime() - startNanos, response);
+    }
+
+    private void recordParse(int items, long startNanos) {
+        BillingMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onParse(items, System.nanoTime() - startNanos);
+    }
+
+    private void recordVerify(int items, long startNanos) {
+        BillingMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onVerify(items, System.nanoTime() - startNanos);
+    }
+
+    private void recordCancelled(String operation) {
+        BillingMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onCancelled(operation);
+    }
+
+    private void scheduleConsume() {
+        if (mState.get() == STATE_DESTROYED) return;
+        getExecutor().execute(mConsumeTask);
+    }
+
+    /**
+     * Consumes queued tokens in batches until the queue is empty or the service goes away.
+     * Only one thread drains the queue at a time, a call made meanwhile is picked up by the
+     * running drain. Tokens in flight on another instance are left to it, not waited for.
+     */
+    private void consumeQueued() {
+        ConsumeQueue queue = getConsumeQueue();
+        do {
+            if (!mConsuming.compareAndSet(false, true)) return;
+            boolean retry;
+            try {
+                retry = consumeBatches(queue);
+            } finally {
+                mConsuming.set(false);
+            }
+            if (retry) return;
+        } while (mState.get() != STATE_DESTROYED && mService != null && queue.hasWaiting());
+    }
+
+    /**
+     * @return {@code true} when a batch hit transient errors and was scheduled to run again
+     */
+    private boolean consumeBatches(ConsumeQueue queue) {
+        while (mState.get() != STATE_DESTROYED && mService != null) {
+            List<String> tokens = queue.take(CONSUME_BATCH_SIZE);
+            if (tokens.isEmpty()) return false;
+
+            List<ConsumeCall> calls = new ArrayList<>(tokens.size());
+            for (String token : tokens) {
+                calls.add(new ConsumeCall(token));
+            }
+            try {
+                Tasks.invokeAll(getExecutor(), calls, CONSUME_MAX_IN_FLIGHT);
+            } catch (InterruptedException e) {
+                queue.release(tokens);
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+
+            List<String> done = new ArrayList<>(tokens.size());
+            List<ConsumeCall> failed = new ArrayList<>();
+            for (ConsumeCall call : calls) {
+                if (isTransientConsumeError(call.mResponse)) {
+                    failed.add(call);
+                } else {
+                    done.add(call.mToken);
+                }
+            }
+            queue.complete(done);
+            for (ConsumeCall call : calls) {
+                if (!isTransientConsumeError(call.mResponse)) deliverConsume(call.mToken, call.mResponse, call.mException);
+            }
+            if (failed.isEmpty()) {
+                mConsumeRetries = 0;
+                continue;
+            }
+
+            List<String> retry = new ArrayList<>(failed.size());
+            for (ConsumeCall call : failed) {
+                retry.add(call.mToken);
+            }
+            queue.release(retry);
+
+            if (mConsumeRetries < CONSUME_MAX_RETRIES) {
+                mHandler.postDelayed(mConsumeRetry, CONSUME_RETRY_DELAY << mConsumeRetries);
+                mConsumeRetries++;
+            } else {
+                // give up until the next start or reconnect, the tokens stay queued
+                mConsumeRetries = 0;
+                for (ConsumeCall call : failed) {
+                    deliverConsume(call.mToken, call.mResponse, call.mException);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isTransientConsumeError(int response) {
+        switch (response) {
+            case BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE:
+            case BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE:
+            case BILLING_RESPONSE_RESULT_ERROR:
+            case BILLING_UNKNOWN_ERROR:
+            case BILLING_DISPOSED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int consumePurchase(String token) throws RemoteException, BillingException {
+        IInAppBillingService service = getService();
+        long start = System.nanoTime();
+        int response = BILLING_UNKNOWN_ERROR;
+        try {
+            response = service.consumePurchase(VERSION, mContext.getPackageName(), token);
+            return response;
+        } finally {
+            recordServiceCall(BillingMetrics.CALL_CONSUME_PURCHASE, start, response);
+        }
+    }
+
+    /**
+     * Calls everyone waiting for the token, whichever instance they consumed it with.
+     */
+    private static void deliverConsume(String token, int response, Exception e) {
+        List<PendingConsume> requests;
+        synchronized (sPendingConsumes) {
+            requests = sPendingConsumes.remove(token);
+        }
+        if (requests == null) return;
+
+        // the item is gone either way
+        if (response == BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED) response = BILLING_RESPONSE_RESULT_OK;
+        for (PendingConsume request : requests) {
+            request.deliver(response, e);
+        }
+    }
+
+    private ConsumeQueue getConsumeQueue() {
+        // shared by all instances so that two of them never consume from separate copies
+        synchronized (Billing.class) {
+            if (sConsumeQueue == null) {
+                sConsumeQueue = new ConsumeQueue(new File(mContext.getFilesDir(), CONSUME_QUEUE_FILE_NAME));
+            }
+            return sConsumeQueue;
+        }
+    }
+
+    private PurchaseVerifier getVerifier() {
+        PurchaseVerifier verifier = mVerifier;
+        if (verifier == null) {
+            verifier = new PurchaseVerifier(mPublicKey);
+            verifier.setCache(mVerificationCache);
+            mVerifier = verifier;
+        }
+        return verifier;
+    }
+
+    private synchronized Executor getVerificationExecutor() {
+        Executor executor = mVerificationExecutor;
+        if (executor != null) return executor;
+
+        if (mOwnVerificationExecutor == null) {
+            // destroy() shut the pool down, late work runs on the calling thread
+            if (mState.get() == STATE_DESTROYED) return Tasks.CALLER_RUNS;
+            mOwnVerificationExecutor = Tasks.newThreadPool("Billing verify", VERIFICATION_PARALLELISM);
+        }
+        return mOwnVerificationExecutor;
+    }
+
+    private synchronized Executor getExecutor() {
+        Executor executor = mExecutor;
+        if (executor != null) return executor;
+
+        if (mOwnExecutor == null) {
+            // destroy() shut the pool down, late work runs on the calling thread
+            if (mState.get() == STATE_DESTROYED) return Tasks.CALLER_RUNS;
+            mOwnExecutor = Tasks.newThreadPool("Billing worker", WORKER_THREADS);
+        }
+        return mOwnExecutor;
+    }
+
+    private Executor getCallbackExecutor() {
+        Executor executor = mCallbackExecutor;
+        if (executor != null) return executor;
+
+        executor = new Executor() {
+            public void execute(Runnable command) {
+                mHandler.post(command);
+            }
+        };
+        mCallbackExecutor = executor;
+        return executor;
     }
 
     private static int getResponseCodeFromBundle(Bundle bundle) {
@@ -317,49 +1598,427 @@ public class Billing {
         return Base64.encode(output);
     }
 
-    private class LoadInventoryTask extends AsyncTask<Object, Void, Inventory> {
-        private InventoryListener mListener;
+    /**
+     * Loads merged while queued. The skus and listeners are changed under the queue lock,
+     * listeners are kept copy on write because cancelled ones are removed while running.
+     */
+    private static class PendingLoad implements InventoryListener, PurchasesListener {
+        private LinkedHashSet<String> mSkus;
+        private final List<InventoryListener> mListeners = new CopyOnWriteArrayList<>();
+        private final List<PurchasesListener> mPurchasesListeners = new CopyOnWriteArrayList<>();
+        private boolean mPinned;
+        private boolean mCancelled;
+        private Thread mThread;
+
+        void add(ArrayList<String> skus, InventoryListener listener, PurchasesListener purchasesListener, boolean cancellable) {
+            if (skus != null) {
+                if (mSkus == null) mSkus = new LinkedHashSet<>();
+                mSkus.addAll(skus);
+            }
+            if (listener != null) mListeners.add(listener);
+            if (purchasesListener != null) mPurchasesListeners.add(purchasesListener);
+            // loads without a cancellable listener also refresh the published inventory
+            if (!cancellable) mPinned = true;
+        }
+
+        /**
+         * @return {@code true} when nobody waits for the load any more
+         */
+        boolean remove(InventoryListener listener) {
+            return mListeners.remove(listener) && !mPinned && mListeners.isEmpty();
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mThread != null) mThread.interrupt();
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Marks the calling thread as the one running the load, so that {@link #cancel()}
+         * can interrupt it.
+         *
+         * @return {@code false} if the load was cancelled before it started
+         */
+        synchronized boolean start() {
+            if (mCancelled) return false;
+            mThread = Thread.currentThread();
+            return true;
+        }
+
+        synchronized void finish() {
+            mThread = null;
+            // clear an interrupt that arrived after the load stopped checking for it
+            Thread.interrupted();
+        }
+
+        ArrayList<String> getSkus() {
+            return mSkus != null ? new ArrayList<>(mSkus) : null;
+        }
+
+        boolean hasPurchasesListeners() {
+            return !mPurchasesListeners.isEmpty();
+        }
+
+        public void onSuccess(Inventory inventory) {
+            for (InventoryListener listener : mListeners) {
+                listener.onSuccess(inventory);
+            }
+        }
+
+        public void onError(int response, Exception e) {
+            for (InventoryListener listener : mListeners) {
+                listener.onError(response, e);
+            }
+        }
+
+        public void onPurchases(String itemType, List<Purchase> purchases) {
+            for (PurchasesListener listener : mPurchasesListeners) {
+                listener.onPurchases(itemType, purchases);
+            }
+        }
+    }
+
+    private static class PendingPurchase {
+        private final Activity mActivity;
+        private final String mSku;
+        private final String mItemType;
+        private final int mRequestCode;
+        private final PurchaseListener mListener;
+
+        PendingPurchase(Activity activity, String sku, String itemType, int requestCode, PurchaseListener listener) {
+            mActivity = activity;
+            mSku = sku;
+            mItemType = itemType;
+            mRequestCode = requestCode;
+            mListener = listener;
+        }
+    }
+
+    private static class PurchaseFlow {
+        private final int mRequestCode;
+        private final String mDeveloperPayload;
+        private final PurchaseListener mListener;
+
+        PurchaseFlow(int requestCode, String developerPayload, PurchaseListener listener) {
+            mRequestCode = requestCode;
+            mDeveloperPayload = developerPayload;
+            mListener = listener;
+        }
+    }
+
+    private static class PendingConsume {
+        private final Billing mOwner;
+        private final Purchase mPurchase;
+        private final ConsumeListener mListener;
+        private final Executor mCallbackExecutor;
+
+        PendingConsume(Billing owner, Purchase purchase, ConsumeListener listener, Executor callbackExecutor) {
+            mOwner = owner;
+            mPurchase = purchase;
+            mListener = listener;
+            mCallbackExecutor = callbackExecutor;
+        }
+
+        void deliver(final int response, final Exception e) {
+            if (mListener == null) return;
+            mCallbackExecutor.execute(new Runnable() {
+                public void run() {
+                    if (response == BILLING_RESPONSE_RESULT_OK) {
+                        mListener.onSuccess(mPurchase);
+                    } else {
+                        mListener.onError(mPurchase, response, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private class ConsumeCall implements Callable<Void> {
+        private final String mToken;
         private int mResponse = BILLING_UNKNOWN_ERROR;
         private Exception mException;
 
-        protected Inventory doInBackground(Object... params) {
+        ConsumeCall(String token) {
+            mToken = token;
+        }
+
+        public Void call() {
             try {
-                mListener = (InventoryListener) params[1];
-                @SuppressWarnings("unchecked")
-                ArrayList<String> skus = (ArrayList<String>) params[0];
-                Inventory result = new Inventory();
-                getSkuDetails(result, skus, TYPE_INAPP);
-                getPurchases(result, TYPE_INAPP);
-                getSkuDetails(result, skus, TYPE_SUBS);
-                getPurchases(result, TYPE_SUBS);
-                return result;
+                mResponse = consumePurchase(mToken);
             } catch (BillingException e) {
-                mException = e;
                 mResponse = e.getCode();
-                cancel(true);
-                return null;
+                mException = e;
+            } catch (RemoteException e) {
+                mException = e;
+            }
+            return null;
+        }
+    }
+
+    private class SkuDetailsChunk implements Callable<Void> {
+        private final ArrayList<String> mSkus;
+        private final String mItemType;
+        private List<SkuDetails> mResult;
+        private Exception mException;
+
+        SkuDetailsChunk(ArrayList<String> skus, String itemType) {
+            mSkus = skus;
+            mItemType = itemType;
+        }
+
+        public Void call() {
+            try {
+                mResult = requestSkuDetails(mSkus, mItemType);
             } catch (Exception e) {
                 mException = e;
-                cancel(true);
-                return null;
             }
+            return null;
+        }
+    }
+
+    private class SkuDetailsQuery implements Callable<Inventory> {
+        private final ArrayList<String> mSkus;
+        private final String mItemType;
+
+        SkuDetailsQuery(ArrayList<String> skus, String itemType) {
+            mSkus = skus;
+            mItemType = itemType;
+        }
+
+        public Inventory call() throws Exception {
+            Inventory.Builder inventory = new Inventory.Builder();
+            getSkuDetails(inventory, mSkus, mItemType);
+            return inventory.build();
+        }
+    }
+
+    private class PurchasesQuery implements Callable<Inventory> {
+        private final String mItemType;
+        private final PurchasesListener mListener;
+
+        PurchasesQuery(String itemType, PurchasesListener listener) {
+            mItemType = itemType;
+            mListener = listener;
+        }
+
+        public Inventory call() throws Exception {
+            Inventory.Builder inventory = new Inventory.Builder();
+            getPurchases(inventory, mItemType, mListener);
+            return inventory.build();
+        }
+    }
+
+    private class SupportQuery implements Callable<Integer> {
+        private final String mItemType;
+
+        SupportQuery(String itemType) {
+            mItemType = itemType;
+        }
+
+        public Integer call() throws RemoteException, BillingException {
+            return isBillingSupported(mItemType);
+        }
+    }
+
+    private class SetupTask implements Runnable {
+        private final CreateListener mListener;
+
+        SetupTask(CreateListener listener) {
+            mListener = listener;
+        }
+
+        public void run() {
+            BillingSupportCache cache = mSupportCache;
+            if (cache != null && cache.isSupported()) {
+                finishSetup(mListener);
+                return;
+            }
+
+            List<SupportQuery> queries = new ArrayList<>(2);
+            queries.add(new SupportQuery(TYPE_INAPP));
+            queries.add(new SupportQuery(TYPE_SUBS));
+            try {
+                // in-app products first, its response wins when both fail
+                for (int response : Tasks.invokeAll(getExecutor(), queries, queries.size())) {
+                    if (response != BILLING_RESPONSE_RESULT_OK) {
+                        failSetup(mListener, response, null);
+                        return;
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof BillingException) {
+                    BillingException cause = (BillingException) e.getCause();
+                    failSetup(mListener, cause.getCode(), cause);
+                } else {
+                    Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    failSetup(mListener, BILLING_RESPONSE_RESULT_ERROR, cause);
+                }
+                return;
+            } catch (InterruptedException e) {
+                failSetup(mListener, BILLING_RESPONSE_RESULT_ERROR, e);
+                return;
+            }
+
+            if (cache != null) cache.setSupported();
+            finishSetup(mListener);
+        }
+    }
+
+    /**
+     * Listener of one {@code loadInventory} call with an inventory cache. Run on the executor,
+     * it reads the cached snapshot and delivers it ahead of the queued refresh. The refresh is
+     * then delivered only if the requested skus or purchases changed, and its error only if no
+     * snapshot was delivered. Callbacks are only touched on the callback executor.
+     */
+    private class SnapshotListener implements InventoryListener, Runnable {
+        private final InventoryCache mCache;
+        private final ArrayList<String> mSkus;
+        private final InventoryListener mListener;
+        private Inventory mSnapshot;
+        private boolean mRefreshed;
+
+        SnapshotListener(InventoryCache cache, ArrayList<String> skus, InventoryListener listener) {
+            mCache = cache;
+            mSkus = skus != null ? new ArrayList<>(skus) : null;
+            mListener = listener;
         }
 
-        @Override
-        protected void onPostExecute(Inventory result) {
-            super.onPostExecute(result);
-            mState = STATE_READY;
-            if (!isCancelled()) {
-                if (mListener != null) mListener.onSuccess(result);
+        public void run() {
+            Inventory cached;
+            try {
+                cached = mCache.load(getVerifier(), mSkus);
+            } catch (RuntimeException e) {
+                // a bad public key, the refresh reports it
+                return;
             }
+            if (cached == null) return;
+
+            // a refresh that was published first is newer than the snapshot
+            Inventory published = publishSnapshot(cached);
+            final Inventory snapshot = published != null ? published : cached;
+            getCallbackExecutor().execute(new Runnable() {
+                public void run() {
+                    if (mRefreshed) return;
+                    mSnapshot = snapshot;
+                    mListener.onSuccess(snapshot);
+                }
+            });
         }
 
-        @Override
-        protected void onCancelled() {
-            super.onCancelled();
-            mState = STATE_READY;
-            if (mListener != null) mListener.onError(mResponse, mException);
+        public void onSuccess(Inventory inventory) {
+            mRefreshed = true;
+            if (mSnapshot != null && mSnapshot.hasSameContent(inventory, mSkus)) return;
+            mListener.onSuccess(inventory);
+        }
+
+        public void onError(int response, Exception e) {
+            mRefreshed = true;
+            if (mSnapshot != null) return;
+            mListener.onError(response, e);
+        }
+    }
+
+    private class LoadInventoryTask implements Runnable, PurchasesListener {
+        private final PendingLoad mLoad;
+        private final ArrayList<String> mSkus;
+        private final InventoryListener mListener;
+        private final PurchasesListener mPurchasesListener;
+        private final Executor mCallbackExecutor;
+
+        LoadInventoryTask(PendingLoad load) {
+            mLoad = load;
+            mSkus = load.getSkus();
+            mListener = load;
+            mPurchasesListener = load.hasPurchasesListeners() ? load : null;
+            mCallbackExecutor = getCallbackExecutor();
+        }
+
+        public void run() {
+            if (!mLoad.start()) {
+                deliverCancelled();
+                return;
+            }
+            try {
+                PurchasesListener pages = mPurchasesListener != null ? this : null;
+
+                // the four queries are independent, run them side by side and join the parts
+                List<Callable<Inventory>> queries = new ArrayList<>(4);
+                queries.add(new SkuDetailsQuery(mSkus, TYPE_INAPP));
+                queries.add(new PurchasesQuery(TYPE_INAPP, pages));
+                queries.add(new SkuDetailsQuery(mSkus, TYPE_SUBS));
+                queries.add(new PurchasesQuery(TYPE_SUBS, pages));
+
+                Inventory.Builder builder = new Inventory.Builder();
+                try {
+                    for (Inventory part : Tasks.invokeAll(getExecutor(), queries, queries.size())) {
+                        builder.addAll(part);
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                    throw (Exception) e.getCause();
+                }
+                Inventory result = builder.build();
+                if (mLoad.isCancelled()) throw new InterruptedException();
+
+                Inventory published = publishInventory(result, mSkus != null ? new HashSet<>(mSkus) : null);
+                InventoryCache cache = mInventoryCache;
+                if (cache != null) cache.save(published);
+                deliverResult(published);
+            } catch (BillingException e) {
+                deliverError(e.getCode(), e);
+            } catch (Exception e) {
+                deliverError(BILLING_UNKNOWN_ERROR, e);
+            } finally {
+                mLoad.finish();
+            }
+        }
+
+        public void onPurchases(final String itemType, final List<Purchase> purchases) {
+            mCallbackExecutor.execute(new Runnable() {
+                public void run() {
+                    mPurchasesListener.onPurchases(itemType, purchases);
+                }
+            });
+        }
+
+        private void deliverResult(final Inventory result) {
+            mCallbackExecutor.execute(new Runnable() {
+                public void run() {
+                    finishOperation();
+                    if (mListener != null) mListener.onSuccess(result);
+                    runPendingOperations();
+                }
+            });
+        }
+
+        private void deliverError(final int response, final Exception e) {
+            // whatever a cancelled load failed with, nobody waits for it
+            if (mLoad.isCancelled()) {
+                deliverCancelled();
+                return;
+            }
+            mCallbackExecutor.execute(new Runnable() {
+                public void run() {
+                    finishOperation();
+                    if (mListener != null) mListener.onError(response, e);
+                    runPendingOperations();
+                }
+            });
+        }
+
+        private void deliverCancelled() {
+            recordCancelled(BillingMetrics.OPERATION_LOAD_INVENTORY);
+            mCallbackExecutor.execute(new Runnable() {
+                public void run() {
+                    finishOperation();
+                    runPendingOperations();
+                }
+            });
         }
     }
 
-}
+}
\ No newline at end of file
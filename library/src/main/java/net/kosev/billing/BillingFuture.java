@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous {@link Billing} operation. Steps are chained with
+ * {@link #then(Continuation)} and cancelling a future stops the work behind it that
+ * nobody else waits for: a queued operation is dropped and a running inventory load
+ * stops before its next billing service call or verification batch.
+ *
+ * <pre>
+ * mLoad = mBilling.create().then(new BillingFuture.Continuation&lt;Void, Inventory&gt;() {
+ *     public BillingFuture&lt;Inventory&gt; then(Void ignored) {
+ *         return mBilling.loadInventory(skus);
+ *     }
+ * });
+ * mLoad.addCallback(callback);
+ * ...
+ * mLoad.cancel(true); // screen closed
+ * </pre>
+ *
+ * <p>Callbacks run on the thread that completes the future, which is the
+ * {@link Billing#setCallbackExecutor(java.util.concurrent.Executor) callback executor}
+ * for futures returned by {@code Billing}, or right away on the calling thread when
+ * the future is already done.
+ */
+public class BillingFuture<T> implements Future<T> {
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * @param response the billing response code, {@link Billing#BILLING_CANCELLED} when
+         *                 the future was cancelled
+         */
+        void onError(int response, Exception e);
+    }
+
+    public interface Continuation<T, R> {
+        /**
+         * Starts the next step with the result of the previous one.
+         *
+         * @return the future of the next step, {@code null} completes the chain with {@code null}
+         * @throws Exception fails the chain with {@link Billing#BILLING_UNKNOWN_ERROR}
+         */
+        BillingFuture<R> then(T result) throws Exception;
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private int mState = PENDING;
+    private T mResult;
+    private int mResponse = Billing.BILLING_RESPONSE_RESULT_OK;
+    private Exception mException;
+    private List<Callback<? super T>> mCallbacks = new ArrayList<>(1);
+    private Runnable mCanceller;
+
+    BillingFuture() {
+    }
+
+    /**
+     * A future that already succeeded, for continuations that have nothing to wait for.
+     */
+    public static <T> BillingFuture<T> completed(T result) {
+        BillingFuture<T> future = new BillingFuture<>();
+        future.set(result);
+        return future;
+    }
+
+    /**
+     * Runs {@code continuation} once this future succeeds and returns the future of the
+     * step it starts. Errors skip the continuation and fail the returned future with the
+     * same response. Cancelling the returned future cancels whichever step is running.
+     */
+    public <R> BillingFuture<R> then(final Continuation<? super T, R> continuation) {
+        final BillingFuture<R> next = new BillingFuture<>();
+        next.setCanceller(new Runnable() {
+            public void run() {
+                cancel(true);
+            }
+        });
+        addCallback(new Callback<T>() {
+            public void onSuccess(T result) {
+                BillingFuture<R> step;
+                try {
+                    step = continuation.then(result);
+                } catch (Exception e) {
+                    next.setError(Billing.BILLING_UNKNOWN_ERROR, e);
+                    return;
+                }
+                if (step == null) {
+                    next.set(null);
+                    return;
+                }
+
+                next.setCanceller(new CancelStep(step));
+                step.addCallback(new Callback<R>() {
+                    public void onSuccess(R result) {
+                        next.set(result);
+                    }
+
+                    public void onError(int response, Exception e) {
+                        next.setError(response, e);
+                    }
+                });
+            }
+
+            public void onError(int response, Exception e) {
+                next.setError(response, e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Calls {@code callback} once this future is done, right away if it already is.
+     */
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        deliver(callback);
+    }
+
+    /**
+     * Cancels the operation if it has not completed yet. Work that other callers still wait
+     * for, such as a load merged with theirs, keeps running for them. A started purchase flow
+     * cannot be taken off the screen, its result is dropped instead.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(CANCELLED, null, Billing.BILLING_CANCELLED, null)) return false;
+
+        Runnable canceller;
+        synchronized (this) {
+            canceller = mCanceller;
+            mCanceller = null;
+        }
+        if (canceller != null) canceller.run();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+
+    /**
+     * @throws ExecutionException if the operation failed, see {@link #getResponse()} for the reason
+     */
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == PENDING) {
+            wait();
+        }
+        return getResult();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    /**
+     * Billing response code of a completed future: {@link Billing#BILLING_RESPONSE_RESULT_OK}
+     * on success, {@link Billing#BILLING_CANCELLED} once cancelled.
+     */
+    public synchronized int getResponse() {
+        return mResponse;
+    }
+
+    boolean set(T result) {
+        return complete(SUCCEEDED, result, Billing.BILLING_RESPONSE_RESULT_OK, null);
+    }
+
+    boolean setError(int response, Exception e) {
+        return complete(FAILED, null, response, e);
+    }
+
+    /**
+     * Sets what {@link #cancel(boolean)} does to stop the work, replacing the previous one.
+     * Runs it right away when the future was cancelled already.
+     */
+    void setCanceller(Runnable canceller) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                mCanceller = canceller;
+                return;
+            }
+            if (mState != CANCELLED) return;
+        }
+        canceller.run();
+    }
+
+    private boolean complete(int state, T result, int response, Exception e) {
+        List<Callback<? super T>> callbacks;
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mState = state;
+            mResult = result;
+            mResponse = response;
+            mException = e;
+            if (state != CANCELLED) mCanceller = null;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+
+        for (Callback<? super T> callback : callbacks) {
+            deliver(callback);
+        }
+        return true;
+    }
+
+    private void deliver(Callback<? super T> callback) {
+        int state;
+        synchronized (this) {
+            state = mState;
+        }
+        if (state == SUCCEEDED) {
+            callback.onSuccess(mResult);
+        } else {
+            callback.onError(mResponse, state == CANCELLED ? new CancellationException() : mException);
+        }
+    }
+
+    private T getResult() throws ExecutionException {
+        if (mState == CANCELLED) throw new CancellationException();
+        if (mState == FAILED) throw new ExecutionException("Billing response " + mResponse, mException);
+        return mResult;
+    }
+
+    private static class CancelStep implements Runnable {
+        private final Future<?> mStep;
+
+        CancelStep(Future<?> step) {
+            mStep = step;
+        }
+
+        public void run() {
+            mStep.cancel(true);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+/**
+ * Receives timings and counters from {@link Billing}. Set an implementation with
+ * {@link Billing#setMetrics(BillingMetrics)}; {@link HistogramBillingMetrics} is a ready to use
+ * one. Methods are called from the threads doing the work and must be cheap and thread safe.
+ */
+public interface BillingMetrics {
+
+    String CALL_IS_BILLING_SUPPORTED = "isBillingSupported";
+    String CALL_GET_SKU_DETAILS = "getSkuDetails";
+    String CALL_GET_BUY_INTENT = "getBuyIntent";
+    String CALL_GET_PURCHASES = "getPurchases";
+    String CALL_CONSUME_PURCHASE = "consumePurchase";
+
+    String OPERATION_LOAD_INVENTORY = "loadInventory";
+    String OPERATION_PURCHASE = "purchase";
+
+    /**
+     * A call to the billing service finished.
+     *
+     * @param call one of the {@code CALL_} constants
+     * @param response the response code of the call, {@link Billing#BILLING_UNKNOWN_ERROR} if it threw
+     */
+    void onServiceCall(String call, long durationNanos, int response);
+
+    /**
+     * A batch of purchases or sku details was parsed from JSON.
+     */
+    void onParse(int items, long durationNanos);
+
+    /**
+     * A batch of purchase signatures was verified.
+     */
+    void onVerify(int items, long durationNanos);
+
+    /**
+     * An operation was cancelled, either by the user or because related work failed.
+     *
+     * @param operation one of the {@code OPERATION_} constants
+     */
+    void onCancelled(String operation);
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers across launches that the billing service supports in-app products and
+ * subscriptions. When set through {@link Billing#setBillingSupportCache(BillingSupportCache)},
+ * {@link Billing#create(Billing.CreateListener)} skips its {@code isBillingSupported} checks
+ * until the stored result expires. Only successful checks are stored, so an unsupported
+ * device is checked again on every start.
+ */
+@SuppressWarnings("unused")
+public class BillingSupportCache {
+
+    private static final String PREFERENCES_NAME = "net.kosev.billing.support";
+    private static final String KEY_SUPPORTED_AT = "supported_at_v" + Billing.VERSION;
+
+    private final SharedPreferences mPreferences;
+    private final long mTtl;
+
+    /**
+     * @param ttl how long a successful check is trusted, in milliseconds
+     */
+    public BillingSupportCache(Context context, long ttl) {
+        this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE), ttl);
+    }
+
+    public BillingSupportCache(SharedPreferences preferences, long ttl) {
+        mPreferences = preferences;
+        mTtl = ttl;
+    }
+
+    boolean isSupported() {
+        long age = System.currentTimeMillis() - mPreferences.getLong(KEY_SUPPORTED_AT, 0);
+        return age >= 0 && age <= mTtl;
+    }
+
+    void setSupported() {
+        mPreferences.edit().putLong(KEY_SUPPORTED_AT, System.currentTimeMillis()).apply();
+    }
+
+    public void clear() {
+        mPreferences.edit().remove(KEY_SUPPORTED_AT).apply();
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Purchase tokens waiting to be consumed, backed by an append-only journal so that
+ * they survive process death. Every queued token is recorded before it is consumed
+ * and every finished one afterwards; tokens without a finish record are consumed
+ * again on the next start, which is harmless since the service answers
+ * {@link Billing#BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED} for already consumed ones.
+ *
+ * <p>The journal is read on first use and {@link #add(String, String)} syncs its record
+ * before returning, so a token is safe once added, at the price of a small disk write
+ * on the calling thread.
+ */
+final class ConsumeQueue {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_DONE = 2;
+    private static final int COMPACT_THRESHOLD = 64;
+
+    private final File mFile;
+    private Map<String, String> mPending = null;
+    private final Set<String> mInFlight = new HashSet<>();
+    private int mRecords = 0;
+
+    ConsumeQueue(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Queues the token and writes it to the journal. If the journal cannot be written the
+     * token is still consumed, it just will not be resumed after process death; the purchase
+     * then stays owned and shows up in the next inventory.
+     *
+     * @return {@code false} if the token is already queued
+     */
+    synchronized boolean add(String token, String sku) {
+        Map<String, String> pending = getPending();
+        if (pending.containsKey(token)) return false;
+        pending.put(token, sku);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeAdd(new DataOutputStream(bytes), token, sku);
+            append(bytes.toByteArray());
+            mRecords++;
+        } catch (IOException ignored) { }
+        return true;
+    }
+
+    /**
+     * Hands out up to {@code max} queued tokens that nobody is consuming yet, oldest first.
+     * They must be passed back to {@link #complete(List)} or {@link #release(List)}.
+     */
+    synchronized List<String> take(int max) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : getPending().keySet()) {
+            if (tokens.size() == max) break;
+            if (mInFlight.add(token)) tokens.add(token);
+        }
+        return tokens;
+    }
+
+    synchronized boolean isEmpty() {
+        return getPending().isEmpty();
+    }
+
+    /**
+     * Whether there are queued tokens that nobody is consuming, so {@link #take(int)}
+     * would hand out some.
+     */
+    synchronized boolean hasWaiting() {
+        return getPending().size() > mInFlight.size();
+    }
+
+    /**
+     * Removes the tokens from the queue with a single journal write.
+     */
+    synchronized void complete(List<String> tokens) {
+        if (tokens.isEmpty()) return;
+        Map<String, String> pending = getPending();
+        for (String token : tokens) {
+            pending.remove(token);
+            mInFlight.remove(token);
+        }
+
+        try {
+            if (pending.isEmpty()) {
+                //noinspection ResultOfMethodCallIgnored
+                mFile.delete();
+                mRecords = 0;
+            } else if (mRecords + tokens.size() > pending.size() * 2 + COMPACT_THRESHOLD) {
+                compact();
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream records = new DataOutputStream(bytes);
+                for (String token : tokens) {
+                    records.writeByte(RECORD_DONE);
+                    records.writeUTF(token);
+                }
+                append(bytes.toByteArray());
+                mRecords += tokens.size();
+            }
+        } catch (IOException ignored) {
+            // the tokens are consumed once more on the next start
+        }
+    }
+
+    /**
+     * Gives the tokens back to the queue to be taken again later.
+     */
+    synchronized void release(List<String> tokens) {
+        mInFlight.removeAll(tokens);
+    }
+
+    private Map<String, String> getPending() {
+        if (mPending == null) {
+            mPending = new LinkedHashMap<>();
+            load();
+        }
+        return mPending;
+    }
+
+    private void load() {
+        if (!mFile.exists()) return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown journal version");
+            }
+
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                String token = in.readUTF();
+                if (type == RECORD_ADD) {
+                    mPending.put(token, in.readUTF());
+                } else if (type == RECORD_DONE) {
+                    mPending.remove(token);
+                } else {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // keep what was read before a torn record
+        } finally {
+            close(in);
+        }
+
+        // start from a clean file without finished or torn records
+        try {
+            compact();
+        } catch (IOException ignored) { }
+    }
+
+    private void compact() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(FORMAT_VERSION);
+            for (Map.Entry<String, String> entry : mPending.entrySet()) {
+                writeAdd(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            close(file);
+        }
+
+        if (!temp.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mRecords = mPending.size();
+    }
+
+    private void append(byte[] records) throws IOException {
+        boolean created = !mFile.exists();
+        FileOutputStream file = new FileOutputStream(mFile, true);
+        try {
+            if (created) {
+                new DataOutputStream(file).writeInt(FORMAT_VERSION);
+            }
+            file.write(records);
+            file.getFD().sync();
+        } finally {
+            close(file);
+        }
+    }
+
+    private static void writeAdd(DataOutputStream out, String token, String sku) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeUTF(token);
+        out.writeUTF(sku != null ? sku : "");
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link BillingMetrics} that keeps a {@link LatencyHistogram} per service call, for parsing
+ * and for verification, and counts response codes and cancellations. Everything can be read
+ * at any time from any thread to export to your own telemetry.
+ */
+@SuppressWarnings("unused")
+public class HistogramBillingMetrics implements BillingMetrics {
+
+    private static final String[] CALLS = {
+            CALL_IS_BILLING_SUPPORTED, CALL_GET_SKU_DETAILS, CALL_GET_BUY_INTENT,
+            CALL_GET_PURCHASES, CALL_CONSUME_PURCHASE
+    };
+
+    private final Map<String, LatencyHistogram> mCallLatency = new HashMap<>();
+    private final LatencyHistogram mParseLatency = new LatencyHistogram();
+    private final LatencyHistogram mVerifyLatency = new LatencyHistogram();
+    private final AtomicLong mParsedItems = new AtomicLong();
+    private final AtomicLong mVerifiedItems = new AtomicLong();
+    private final ConcurrentMap<Integer, AtomicLong> mResponses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> mCancellations = new ConcurrentHashMap<>();
+
+    public HistogramBillingMetrics() {
+        for (String call : CALLS) {
+            mCallLatency.put(call, new LatencyHistogram());
+        }
+    }
+
+    public void onServiceCall(String call, long durationNanos, int response) {
+        LatencyHistogram histogram = mCallLatency.get(call);
+        if (histogram != null) histogram.record(durationNanos);
+        increment(mResponses, response);
+    }
+
+    public void onParse(int items, long durationNanos) {
+        mParseLatency.record(durationNanos);
+        mParsedItems.addAndGet(items);
+    }
+
+    public void onVerify(int items, long durationNanos) {
+        mVerifyLatency.record(durationNanos);
+        mVerifiedItems.addAndGet(items);
+    }
+
+    public void onCancelled(String operation) {
+        increment(mCancellations, operation);
+    }
+
+    /**
+     * @param call one of the {@code CALL_} constants
+     */
+    public LatencyHistogram getCallLatency(String call) {
+        return mCallLatency.get(call);
+    }
+
+    public LatencyHistogram getParseLatency() {
+        return mParseLatency;
+    }
+
+    public LatencyHistogram getVerifyLatency() {
+        return mVerifyLatency;
+    }
+
+    public long getParsedItems() {
+        return mParsedItems.get();
+    }
+
+    public long getVerifiedItems() {
+        return mVerifiedItems.get();
+    }
+
+    public long getResponseCount(int response) {
+        AtomicLong count = mResponses.get(response);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return response code to number of service calls that returned it
+     */
+    public Map<Integer, Long> getResponseCounts() {
+        Map<Integer, Long> counts = new HashMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : mResponses.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public long getCancellationCount(String operation) {
+        AtomicLong count = mCancellations.get(operation);
+        return count != null ? count.get() : 0;
+    }
+
+    private static <K> void increment(ConcurrentMap<K, AtomicLong> counters, K key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+}
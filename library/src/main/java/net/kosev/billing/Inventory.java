@@ -16,14 +16,46 @@
 
 package net.kosev.billing;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Immutable snapshot of sku details and owned items. It can be shared freely between
+ * threads. Every snapshot published by {@link Billing} carries a higher
+ * {@link #getVersion() version} than the one before, so holders can tell whether
+ * {@link Billing#getInventory()} moved on by comparing two longs.
+ */
 @SuppressWarnings("unused")
 public class Inventory {
 
-    private Map<String, SkuDetails> mSkuMap = new HashMap<>();
-    private Map<String, Purchase> mPurchaseMap = new HashMap<>();
+    static final Inventory EMPTY = new Builder().build();
+
+    private final long mVersion;
+    private final Map<String, SkuDetails> mSkuMap;
+    private final Map<String, Purchase> mPurchaseMap;
+    private final List<String> mRejectedPurchases;
+    private final List<String> mFailedSkus;
+    private volatile SkuCatalog mCatalog;
+
+    private Inventory(long version, Map<String, SkuDetails> skuMap, Map<String, Purchase> purchaseMap,
+                      List<String> rejectedPurchases, List<String> failedSkus) {
+        mVersion = version;
+        mSkuMap = skuMap;
+        mPurchaseMap = purchaseMap;
+        mRejectedPurchases = rejectedPurchases;
+        mFailedSkus = failedSkus;
+    }
+
+    /**
+     * @return version of the snapshot, 0 until it is published by {@link Billing}
+     */
+    public long getVersion() {
+        return mVersion;
+    }
 
     public SkuDetails getSkuDetails(String sku) {
         return mSkuMap.get(sku);
@@ -41,12 +73,168 @@ public class Inventory {
         return mSkuMap.containsKey(sku);
     }
 
-    void addSkuDetails(SkuDetails details) {
-        mSkuMap.put(details.sku, details);
+    /**
+     * Sku details indexed by price, type and currency. Built on first use and kept with
+     * the snapshot, so repeated queries on the same inventory do not sort again.
+     */
+    public SkuCatalog getCatalog() {
+        SkuCatalog catalog = mCatalog;
+        if (catalog == null) {
+            // building twice on a race is harmless, both catalogs are equal
+            catalog = new SkuCatalog(mSkuMap.values());
+            mCatalog = catalog;
+        }
+        return catalog;
+    }
+
+    /**
+     * Raw purchase data that failed signature verification and was left out
+     * under {@link Billing#VERIFICATION_POLICY_SKIP}.
+     */
+    public List<String> getRejectedPurchases() {
+        return mRejectedPurchases;
+    }
+
+    /**
+     * Skus whose details could not be loaded because their request to the
+     * service failed. The remaining details are still available.
+     */
+    public List<String> getFailedSkus() {
+        return mFailedSkus;
+    }
+
+    Collection<SkuDetails> getAllSkuDetails() {
+        return mSkuMap.values();
+    }
+
+    Collection<Purchase> getAllPurchases() {
+        return mPurchaseMap.values();
+    }
+
+    /**
+     * Same content under another version. The maps, lists and catalog are shared, not copied.
+     */
+    Inventory withVersion(long version) {
+        Inventory inventory = new Inventory(version, mSkuMap, mPurchaseMap, mRejectedPurchases, mFailedSkus);
+        inventory.mCatalog = mCatalog;
+        return inventory;
     }
 
-    void addPurchase(Purchase purchase) {
-        mPurchaseMap.put(purchase.sku, purchase);
+    /**
+     * Adds the sku details of {@code previous} that this inventory did not load: those of skus
+     * outside {@code requested}, all of them when {@code null}, and those of failed skus.
+     *
+     * @return this inventory when there is nothing to add
+     */
+    Inventory withSkuDetailsFrom(Inventory previous, Collection<String> requested) {
+        Map<String, SkuDetails> skuMap = null;
+        for (SkuDetails details : previous.mSkuMap.values()) {
+            if (mSkuMap.containsKey(details.sku)) continue;
+            if (requested != null && requested.contains(details.sku) && !mFailedSkus.contains(details.sku)) continue;
+
+            if (skuMap == null) skuMap = new HashMap<>(mSkuMap);
+            skuMap.put(details.sku, details);
+        }
+        if (skuMap == null) return this;
+        return new Inventory(mVersion, Collections.unmodifiableMap(skuMap), mPurchaseMap, mRejectedPurchases, mFailedSkus);
+    }
+
+    /**
+     * Whether both inventories hold the same raw sku details and purchases.
+     */
+    boolean hasSameContent(Inventory other) {
+        return hasSameContent(other, null);
+    }
+
+    /**
+     * Same as {@link #hasSameContent(Inventory)}, but compares only the details of the
+     * given skus, or of all skus when {@code null}. Purchases are always compared in full.
+     */
+    boolean hasSameContent(Inventory other, Collection<String> skus) {
+        if (mPurchaseMap.size() != other.mPurchaseMap.size()) {
+            return false;
+        }
+
+        if (skus == null) {
+            if (mSkuMap.size() != other.mSkuMap.size()) {
+                return false;
+            }
+            for (SkuDetails details : mSkuMap.values()) {
+                SkuDetails otherDetails = other.mSkuMap.get(details.sku);
+                if (otherDetails == null || !details.originalJson.equals(otherDetails.originalJson)) {
+                    return false;
+                }
+            }
+        } else {
+            for (String sku : skus) {
+                SkuDetails details = mSkuMap.get(sku);
+                SkuDetails otherDetails = other.mSkuMap.get(sku);
+                if (details == null ? otherDetails != null
+                        : otherDetails == null || !details.originalJson.equals(otherDetails.originalJson)) {
+                    return false;
+                }
+            }
+        }
+
+        for (Purchase purchase : mPurchaseMap.values()) {
+            Purchase otherPurchase = other.mPurchaseMap.get(purchase.sku);
+            if (otherPurchase == null || !purchase.originalJson.equals(otherPurchase.originalJson)
+                    || !purchase.signature.equals(otherPurchase.signature)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the parts of an inventory while it is loading. Not thread safe, every
+     * query fills its own builder and the results are joined with {@link #addAll(Inventory)}.
+     */
+    static final class Builder {
+
+        private final Map<String, SkuDetails> mSkuMap = new HashMap<>();
+        private final Map<String, Purchase> mPurchaseMap = new HashMap<>();
+        private final List<String> mRejectedPurchases = new ArrayList<>();
+        private final List<String> mFailedSkus = new ArrayList<>();
+
+        Builder addSkuDetails(SkuDetails details) {
+            mSkuMap.put(details.sku, details);
+            return this;
+        }
+
+        Builder addPurchase(Purchase purchase) {
+            mPurchaseMap.put(purchase.sku, purchase);
+            return this;
+        }
+
+        Builder addFailedSkus(List<String> skus) {
+            mFailedSkus.addAll(skus);
+            return this;
+        }
+
+        Builder addRejectedPurchase(String purchaseData) {
+            mRejectedPurchases.add(purchaseData);
+            return this;
+        }
+
+        Builder addAll(Inventory other) {
+            mSkuMap.putAll(other.mSkuMap);
+            mPurchaseMap.putAll(other.mPurchaseMap);
+            mRejectedPurchases.addAll(other.mRejectedPurchases);
+            mFailedSkus.addAll(other.mFailedSkus);
+            return this;
+        }
+
+        /**
+         * @return an unversioned snapshot; the builder must not be used afterwards
+         */
+        Inventory build() {
+            return new Inventory(0,
+                    Collections.unmodifiableMap(mSkuMap),
+                    Collections.unmodifiableMap(mPurchaseMap),
+                    Collections.unmodifiableList(mRejectedPurchases),
+                    Collections.unmodifiableList(mFailedSkus));
+        }
     }
 
 }
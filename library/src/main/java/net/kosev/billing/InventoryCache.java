@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.content.Context;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the last loaded {@link Inventory}. When set through
+ * {@link Billing#setInventoryCache(InventoryCache)}, {@code loadInventory} delivers
+ * the snapshot right away and calls back a second time only if the refreshed
+ * inventory differs from it.
+ */
+@SuppressWarnings("unused")
+public class InventoryCache {
+
+    private static final String FILE_NAME = "net.kosev.billing.inventory";
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_ENTRY_LENGTH = 1024 * 1024;
+
+    private final File mFile;
+    private final long mSkuDetailsTtl;
+    private final long mPurchasesTtl;
+
+    /**
+     * @param skuDetailsTtl how long cached sku details may be served, in milliseconds
+     * @param purchasesTtl how long cached purchases may be served, in milliseconds
+     */
+    public InventoryCache(Context context, long skuDetailsTtl, long purchasesTtl) {
+        this(new File(context.getCacheDir(), FILE_NAME), skuDetailsTtl, purchasesTtl);
+    }
+
+    public InventoryCache(File file, long skuDetailsTtl, long purchasesTtl) {
+        mFile = file;
+        mSkuDetailsTtl = skuDetailsTtl;
+        mPurchasesTtl = purchasesTtl;
+    }
+
+    /**
+     * Reads the snapshot and re-verifies every cached purchase against its stored signature.
+     *
+     * @return the snapshot limited to the requested skus, or {@code null} if there is
+     * no usable snapshot, its purchases expired or any signature does not match
+     */
+    synchronized Inventory load(PurchaseVerifier verifier, List<String> skus) {
+        if (!mFile.exists()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION) return null;
+
+            long savedAt = in.readLong();
+            long age = System.currentTimeMillis() - savedAt;
+            if (age < 0 || age > mPurchasesTtl) return null;
+            boolean skuDetailsFresh = age <= mSkuDetailsTtl;
+
+            Inventory.Builder inventory = new Inventory.Builder();
+            int detailsCount = in.readInt();
+            for (int i = 0; i < detailsCount; i++) {
+                String json = readString(in);
+                if (skuDetailsFresh) {
+                    SkuDetails details = new SkuDetails(json);
+                    if (skus == null || skus.contains(details.sku)) {
+                        inventory.addSkuDetails(details);
+                    }
+                }
+            }
+
+            int purchaseCount = in.readInt();
+            for (int i = 0; i < purchaseCount; i++) {
+                String json = readString(in);
+                String signature = readString(in);
+                if (!verifier.verifyPurchase(json, signature)) {
+                    return null;
+                }
+                inventory.addPurchase(new Purchase(json, signature));
+            }
+            return inventory.build();
+        } catch (IOException | JSONException e) {
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    synchronized void save(Inventory inventory) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(System.currentTimeMillis());
+
+            Collection<SkuDetails> details = inventory.getAllSkuDetails();
+            out.writeInt(details.size());
+            for (SkuDetails item : details) {
+                writeString(out, item.originalJson);
+            }
+
+            Collection<Purchase> purchases = inventory.getAllPurchases();
+            out.writeInt(purchases.size());
+            for (Purchase purchase : purchases) {
+                writeString(out, purchase.originalJson);
+                writeString(out, purchase.signature);
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(mFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        } catch (IOException e) {
+            close(out);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    public synchronized void clear() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_ENTRY_LENGTH) {
+            throw new IOException("Corrupted entry length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Difference between two consecutive {@link Inventory} snapshots. Entries are matched by sku
+ * and compared by their raw JSON, and for purchases also by signature. Changed entries are
+ * reported with their new value.
+ */
+@SuppressWarnings("unused")
+public class InventoryDiff {
+
+    private final long mFromVersion;
+    private final long mToVersion;
+    private final List<Purchase> mAddedPurchases = new ArrayList<>();
+    private final List<Purchase> mRemovedPurchases = new ArrayList<>();
+    private final List<Purchase> mChangedPurchases = new ArrayList<>();
+    private final List<SkuDetails> mAddedSkuDetails = new ArrayList<>();
+    private final List<SkuDetails> mRemovedSkuDetails = new ArrayList<>();
+    private final List<SkuDetails> mChangedSkuDetails = new ArrayList<>();
+
+    /**
+     * Skus whose details failed to load in {@code to} are not reported as removed, their
+     * details are simply unknown.
+     */
+    InventoryDiff(Inventory from, Inventory to) {
+        mFromVersion = from.getVersion();
+        mToVersion = to.getVersion();
+
+        for (Purchase purchase : to.getAllPurchases()) {
+            Purchase old = from.getPurchase(purchase.sku);
+            if (old == null) {
+                mAddedPurchases.add(purchase);
+            } else if (old != purchase && (!old.originalJson.equals(purchase.originalJson)
+                    || !old.signature.equals(purchase.signature))) {
+                mChangedPurchases.add(purchase);
+            }
+        }
+        for (Purchase purchase : from.getAllPurchases()) {
+            if (!to.hasPurchase(purchase.sku)) mRemovedPurchases.add(purchase);
+        }
+
+        for (SkuDetails details : to.getAllSkuDetails()) {
+            SkuDetails old = from.getSkuDetails(details.sku);
+            if (old == null) {
+                mAddedSkuDetails.add(details);
+            } else if (old != details && !old.originalJson.equals(details.originalJson)) {
+                mChangedSkuDetails.add(details);
+            }
+        }
+        List<String> failedSkus = to.getFailedSkus();
+        for (SkuDetails details : from.getAllSkuDetails()) {
+            if (!to.hasDetails(details.sku) && !failedSkus.contains(details.sku)) {
+                mRemovedSkuDetails.add(details);
+            }
+        }
+    }
+
+    public long getFromVersion() {
+        return mFromVersion;
+    }
+
+    public long getToVersion() {
+        return mToVersion;
+    }
+
+    public boolean isEmpty() {
+        return mAddedPurchases.isEmpty() && mRemovedPurchases.isEmpty() && mChangedPurchases.isEmpty()
+                && mAddedSkuDetails.isEmpty() && mRemovedSkuDetails.isEmpty() && mChangedSkuDetails.isEmpty();
+    }
+
+    /**
+     * New purchases, for example bought on another device.
+     */
+    public List<Purchase> getAddedPurchases() {
+        return Collections.unmodifiableList(mAddedPurchases);
+    }
+
+    /**
+     * Purchases that are no longer owned: consumed, refunded or expired.
+     */
+    public List<Purchase> getRemovedPurchases() {
+        return Collections.unmodifiableList(mRemovedPurchases);
+    }
+
+    /**
+     * Purchases still owned but with different data, for example a renewed subscription.
+     */
+    public List<Purchase> getChangedPurchases() {
+        return Collections.unmodifiableList(mChangedPurchases);
+    }
+
+    public List<SkuDetails> getAddedSkuDetails() {
+        return Collections.unmodifiableList(mAddedSkuDetails);
+    }
+
+    public List<SkuDetails> getRemovedSkuDetails() {
+        return Collections.unmodifiableList(mRemovedSkuDetails);
+    }
+
+    /**
+     * Sku details with a new price, title or description.
+     */
+    public List<SkuDetails> getChangedSkuDetails() {
+        return Collections.unmodifiableList(mChangedSkuDetails);
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.json.JSONException;
+
+/**
+ * Single pass reader over the fields of a flat JSON object, used instead of building
+ * a {@code JSONObject} tree for every purchase and sku. Values are converted the same
+ * lenient way as {@code JSONObject.optString()} and {@code optLong()}, nested values are
+ * skipped unless read as strings.
+ *
+ * <pre>
+ * JsonFieldReader reader = new JsonFieldReader(json);
+ * while (reader.nextField()) {
+ *     if ("productId".equals(reader.name())) sku = reader.stringValue();
+ *     else reader.skipValue();
+ * }
+ * </pre>
+ */
+final class JsonFieldReader {
+
+    private final String mJson;
+    private final int mLength;
+    private int mPos;
+    private String mName;
+    private boolean mValuePending;
+    private boolean mFirst = true;
+
+    JsonFieldReader(String json) throws JSONException {
+        if (json == null) {
+            throw new JSONException("Null JSON");
+        }
+        mJson = json;
+        mLength = json.length();
+        skipWhitespace();
+        expect('{');
+    }
+
+    /**
+     * Moves to the next field of the object.
+     *
+     * @return {@code false} at the end of the object
+     */
+    boolean nextField() throws JSONException {
+        if (mValuePending) {
+            skipValue();
+        }
+
+        skipWhitespace();
+        if (mPos < mLength && mJson.charAt(mPos) == '}') {
+            mPos++;
+            return false;
+        }
+        if (!mFirst) {
+            expect(',');
+            skipWhitespace();
+        }
+        mFirst = false;
+
+        expect('"');
+        mName = readString();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        mValuePending = true;
+        return true;
+    }
+
+    String name() {
+        return mName;
+    }
+
+    /**
+     * Reads the current value as a string. Numbers and literals, {@code null} included,
+     * are returned as written and nested objects and arrays as their JSON text.
+     */
+    String stringValue() throws JSONException {
+        mValuePending = false;
+        char c = peek();
+        if (c == '"') {
+            mPos++;
+            return readString();
+        }
+
+        int start = mPos;
+        skip(c);
+        String value = mJson.substring(start, mPos);
+        if (value.length() == 0) {
+            throw syntaxError("Expected value");
+        }
+        return value;
+    }
+
+    /**
+     * Reads the current value as a long, accepting numbers and numeric strings.
+     * Anything else yields 0.
+     */
+    long longValue() throws JSONException {
+        String value = stringValue();
+        if (value.length() == 0) return 0;
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    int intValue() throws JSONException {
+        return (int) longValue();
+    }
+
+    void skipValue() throws JSONException {
+        mValuePending = false;
+        int start = mPos;
+        skip(peek());
+        if (mPos == start) {
+            throw syntaxError("Expected value");
+        }
+    }
+
+    private void skip(char c) throws JSONException {
+        if (c == '"') {
+            mPos++;
+            skipString();
+        } else if (c == '{' || c == '[') {
+            skipNested();
+        } else {
+            while (mPos < mLength) {
+                c = mJson.charAt(mPos);
+                if (c <= ' ' || c == ',' || c == ':' || c == '"' || c == '}' || c == ']') break;
+                mPos++;
+            }
+        }
+    }
+
+    private void skipNested() throws JSONException {
+        int depth = 0;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) return;
+            }
+        }
+        throw syntaxError("Unterminated value");
+    }
+
+    private void skipString() throws JSONException {
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '\\') {
+                mPos++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Reads a string whose opening quote was already consumed.
+     */
+    private String readString() throws JSONException {
+        int start = mPos;
+        // fast path for strings without escapes
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c == '"') {
+                return mJson.substring(start, mPos++);
+            }
+            if (c == '\\') break;
+            mPos++;
+        }
+
+        StringBuilder builder = new StringBuilder(mPos - start + 16);
+        builder.append(mJson, start, mPos);
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (mPos >= mLength) break;
+
+            c = mJson.charAt(mPos++);
+            switch (c) {
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (mPos + 4 > mLength) throw syntaxError("Unterminated escape sequence");
+                    try {
+                        builder.append((char) Integer.parseInt(mJson.substring(mPos, mPos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("Invalid escape sequence");
+                    }
+                    mPos += 4;
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private char peek() throws JSONException {
+        if (mPos >= mLength) {
+            throw syntaxError("End of input");
+        }
+        return mJson.charAt(mPos);
+    }
+
+    private void expect(char c) throws JSONException {
+        if (mPos >= mLength || mJson.charAt(mPos) != c) {
+            throw syntaxError("Expected " + c);
+        }
+        mPos++;
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLength && mJson.charAt(mPos) <= ' ') {
+            mPos++;
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos);
+    }
+
+}
@@ -17,29 +17,59 @@
 package net.kosev.billing;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class Purchase {
 
-    public String sku;
-    public String orderId;
-    public String packageName;
-    public long purchaseTime;
-    public int purchaseState;
-    public String developerPayload;
-    public String purchaseToken;
-    public String signature;
+    public final String sku;
+    public final String orderId;
+    public final String packageName;
+    public final long purchaseTime;
+    public final int purchaseState;
+    public final String developerPayload;
+    public final String purchaseToken;
+    public final String signature;
+    public final String originalJson;
 
     Purchase(String jsonPurchase, String signature) throws JSONException {
-        JSONObject json = new JSONObject(jsonPurchase);
-        sku = json.optString("productId");
-        orderId = json.optString("orderId");
-        packageName = json.optString("packageName");
-        purchaseTime = json.optLong("purchaseTime");
-        purchaseState = json.optInt("purchaseState");
-        developerPayload = json.optString("developerPayload");
-        purchaseToken = json.optString("token", json.optString("purchaseToken"));
+        String sku = "", orderId = "", packageName = "", developerPayload = "";
+        long purchaseTime = 0;
+        int purchaseState = 0;
+        String token = null;
+        String legacyToken = "";
+
+        JsonFieldReader reader = new JsonFieldReader(jsonPurchase);
+        while (reader.nextField()) {
+            String name = reader.name();
+            if ("productId".equals(name)) {
+                sku = reader.stringValue();
+            } else if ("orderId".equals(name)) {
+                orderId = reader.stringValue();
+            } else if ("packageName".equals(name)) {
+                packageName = reader.stringValue();
+            } else if ("purchaseTime".equals(name)) {
+                purchaseTime = reader.longValue();
+            } else if ("purchaseState".equals(name)) {
+                purchaseState = reader.intValue();
+            } else if ("developerPayload".equals(name)) {
+                developerPayload = reader.stringValue();
+            } else if ("token".equals(name)) {
+                token = reader.stringValue();
+            } else if ("purchaseToken".equals(name)) {
+                legacyToken = reader.stringValue();
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        this.sku = sku;
+        this.orderId = orderId;
+        this.packageName = packageName;
+        this.purchaseTime = purchaseTime;
+        this.purchaseState = purchaseState;
+        this.developerPayload = developerPayload;
+        purchaseToken = token != null ? token : legacyToken;
         this.signature = signature;
+        originalJson = jsonPurchase;
     }
 
 }
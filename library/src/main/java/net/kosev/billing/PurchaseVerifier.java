@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.security.DigestException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Verifies purchase signatures against a single public key. The key is parsed
+ * once and every thread keeps its own initialized {@link Signature} and
+ * scratch buffer, so one instance can be shared by all verification threads.
+ */
+public class PurchaseVerifier {
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int MIN_BATCH_SLICE = 4;
+
+    private final PublicKey mPublicKey;
+    private final byte[] mPublicKeyDigest;
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<>();
+    private volatile VerificationCache mCache = null;
+
+    /**
+     * Per-thread verification state, reused between calls.
+     */
+    private static class Scratch {
+        Signature mSignature;
+        byte[] mData = new byte[1024];
+        byte[] mSignatureBytes = new byte[512];
+        MessageDigest mDigest;
+        byte[] mDigestBytes = new byte[VerificationCache.DIGEST_LENGTH];
+    }
+
+    /**
+     * @param base64PublicKey Base64 encoded X.509 public key from the Play Console
+     * @throws IllegalArgumentException if the key cannot be decoded
+     */
+    public PurchaseVerifier(String base64PublicKey) {
+        this(isEmpty(base64PublicKey) ? null : Security.generatePublicKey(base64PublicKey));
+    }
+
+    public PurchaseVerifier(PublicKey publicKey) {
+        mPublicKey = publicKey;
+        mPublicKeyDigest = publicKey != null ? digestKey(publicKey) : null;
+    }
+
+    /**
+     * Remembers successful verifications in {@code cache}. Entries include the public key, so
+     * one cache can be shared by verifiers with different keys.
+     */
+    public void setCache(VerificationCache cache) {
+        mCache = cache;
+    }
+
+    public boolean verifyPurchase(String signedData, String signature) {
+        if (mPublicKey == null || isEmpty(signedData) || isEmpty(signature)) {
+            return false;
+        }
+
+        Scratch scratch = getScratch();
+        try {
+            int dataLength = encode(scratch, signedData);
+            int maxLength = Base64.maxDecodedLength(signature.length());
+            if (scratch.mSignatureBytes.length < maxLength) {
+                scratch.mSignatureBytes = new byte[maxLength];
+            }
+            int signatureLength = Base64.decode(signature, 0, signature.length(), scratch.mSignatureBytes, 0);
+
+            VerificationCache cache = mCache;
+            byte[] digest = null;
+            if (cache != null) {
+                digest = digest(scratch, dataLength, signatureLength);
+                if (digest != null && cache.contains(digest)) return true;
+            }
+
+            Signature sig = getSignature(scratch);
+            sig.update(scratch.mData, 0, dataLength);
+            boolean verified = sig.verify(scratch.mSignatureBytes, 0, signatureLength);
+            if (verified && digest != null) cache.add(digest);
+            return verified;
+        } catch (NoSuchAlgorithmException | InvalidKeyException ignore) {
+        } catch (SignatureException | Base64.Base64Exception e) {
+            // the signature state is undefined after a failure, start over next time
+            scratch.mSignature = null;
+        }
+
+        return false;
+    }
+
+    /**
+     * Verifies a batch of purchases by splitting it into up to {@code parallelism}
+     * slices that run on the executor. Small batches are verified on the calling thread.
+     * An interrupt stops the remaining verifications.
+     *
+     * @return verification result for each item, in order
+     */
+    public boolean[] verifyPurchases(final List<String> signedData, final List<String> signatures,
+                                     Executor executor, int parallelism) throws InterruptedException {
+        final int count = signedData.size();
+        final boolean[] results = new boolean[count];
+
+        int slices = Math.min(parallelism, count / MIN_BATCH_SLICE);
+        if (executor == null || slices <= 1) {
+            for (int i = 0; i < count; i++) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                results[i] = verifyPurchase(signedData.get(i), signatures.get(i));
+            }
+            return results;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(slices);
+        final int sliceSize = (count + slices - 1) / slices;
+        for (int start = 0; start < count; start += sliceSize) {
+            final int from = start;
+            final int to = Math.min(start + sliceSize, count);
+            tasks.add(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    for (int i = from; i < to; i++) {
+                        if (Thread.interrupted()) throw new InterruptedException();
+                        results[i] = verifyPurchase(signedData.get(i), signatures.get(i));
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            Tasks.invokeAll(executor, tasks, tasks.size());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException) throw (InterruptedException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    private Scratch getScratch() {
+        Scratch scratch = mScratch.get();
+        if (scratch == null) {
+            scratch = new Scratch();
+            mScratch.set(scratch);
+        }
+        return scratch;
+    }
+
+    private Signature getSignature(Scratch scratch) throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature sig = scratch.mSignature;
+        if (sig == null) {
+            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            sig.initVerify(mPublicKey);
+            scratch.mSignature = sig;
+        }
+        // verify() resets the signature for the next call
+        return sig;
+    }
+
+    /**
+     * Digest of the key, the encoded data and the decoded signature in the scratch buffers,
+     * or {@code null} if SHA-256 is not available.
+     */
+    private byte[] digest(Scratch scratch, int dataLength, int signatureLength) {
+        if (mPublicKeyDigest == null) return null;
+        try {
+            MessageDigest md = scratch.mDigest;
+            if (md == null) {
+                md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+                scratch.mDigest = md;
+            }
+
+            md.update(mPublicKeyDigest);
+            // the data length keeps data and signature from running into each other
+            md.update((byte) (dataLength >>> 24));
+            md.update((byte) (dataLength >>> 16));
+            md.update((byte) (dataLength >>> 8));
+            md.update((byte) dataLength);
+            md.update(scratch.mData, 0, dataLength);
+            md.update(scratch.mSignatureBytes, 0, signatureLength);
+            md.digest(scratch.mDigestBytes, 0, scratch.mDigestBytes.length);
+            return scratch.mDigestBytes;
+        } catch (NoSuchAlgorithmException | DigestException e) {
+            scratch.mDigest = null;
+            return null;
+        }
+    }
+
+    private static byte[] digestKey(PublicKey publicKey) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(publicKey.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the string as UTF-8 into the calling thread's scratch buffer
+     * and returns the number of bytes written.
+     */
+    private static int encode(Scratch scratch, String s) {
+        int length = s.length();
+        byte[] buffer = scratch.mData;
+        if (buffer.length < length * 3) {
+            buffer = new byte[length * 3];
+            scratch.mData = buffer;
+        }
+
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xc0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buffer[pos++] = (byte) '?';
+            } else {
+                buffer[pos++] = (byte) (0xe0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+
+}
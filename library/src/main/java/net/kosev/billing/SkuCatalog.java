@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Sku details of an {@link Inventory} indexed for storefront queries. The details are
+ * sorted by {@link SkuDetails#priceAmountMicros} once, into a plain array with the prices
+ * in a parallel {@code long[]}, and every type, currency and type and currency pair gets
+ * a bucket of positions in price order. Range and top-N queries binary search a bucket
+ * and return a read-only view over it, so they neither sort, copy nor box.
+ *
+ * <p>A {@code null} type or currency matches any. Prices in different currencies are
+ * compared by their raw micros. Immutable and safe to share between threads.
+ */
+@SuppressWarnings("unused")
+public final class SkuCatalog {
+
+    private static final Comparator<SkuDetails> PRICE_ORDER = new Comparator<SkuDetails>() {
+        public int compare(SkuDetails a, SkuDetails b) {
+            if (a.priceAmountMicros != b.priceAmountMicros) {
+                return a.priceAmountMicros < b.priceAmountMicros ? -1 : 1;
+            }
+            return a.sku.compareTo(b.sku);
+        }
+    };
+
+    private final SkuDetails[] mDetails;
+    private final Bucket mAll;
+    private final Map<String, Bucket> mBuckets;
+
+    SkuCatalog(Collection<SkuDetails> details) {
+        mDetails = details.toArray(new SkuDetails[details.size()]);
+        Arrays.sort(mDetails, PRICE_ORDER);
+
+        int count = mDetails.length;
+        long[] prices = new long[count];
+        Map<String, Bucket.Builder> builders = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            SkuDetails item = mDetails[i];
+            prices[i] = item.priceAmountMicros;
+            bucketBuilder(builders, key(item.type, null)).add(i, prices[i]);
+            bucketBuilder(builders, key(null, item.priceCurrencyCode)).add(i, prices[i]);
+            bucketBuilder(builders, key(item.type, item.priceCurrencyCode)).add(i, prices[i]);
+        }
+
+        mAll = new Bucket(null, prices, count);
+        mBuckets = new HashMap<>(builders.size() * 2);
+        for (Map.Entry<String, Bucket.Builder> entry : builders.entrySet()) {
+            mBuckets.put(entry.getKey(), entry.getValue().build());
+        }
+    }
+
+    public int size() {
+        return mDetails.length;
+    }
+
+    /**
+     * Number of skus of the type and currency priced from {@code minMicros} to
+     * {@code maxMicros}, both inclusive; none if {@code minMicros} is above {@code maxMicros}.
+     */
+    public int count(String type, String currency, long minMicros, long maxMicros) {
+        Bucket bucket = bucket(type, currency);
+        return Math.max(0, bucket.upperBound(maxMicros) - bucket.lowerBound(minMicros));
+    }
+
+    /**
+     * Skus of the type and currency, cheapest first.
+     */
+    public List<SkuDetails> getAll(String type, String currency) {
+        Bucket bucket = bucket(type, currency);
+        return new View(mDetails, bucket, 0, bucket.mSize, false);
+    }
+
+    /**
+     * Skus of the type and currency priced from {@code minMicros} to {@code maxMicros},
+     * both inclusive, cheapest first.
+     */
+    public List<SkuDetails> getByPrice(String type, String currency, long minMicros, long maxMicros) {
+        Bucket bucket = bucket(type, currency);
+        int from = bucket.lowerBound(minMicros);
+        int to = Math.max(from, bucket.upperBound(maxMicros));
+        return new View(mDetails, bucket, from, to, false);
+    }
+
+    /**
+     * Up to {@code count} cheapest skus of the type and currency, cheapest first.
+     *
+     * @throws IllegalArgumentException if {@code count} is negative
+     */
+    public List<SkuDetails> getCheapest(String type, String currency, int count) {
+        checkCount(count);
+        Bucket bucket = bucket(type, currency);
+        return new View(mDetails, bucket, 0, Math.min(count, bucket.mSize), false);
+    }
+
+    /**
+     * Up to {@code count} most expensive skus of the type and currency, most expensive first.
+     *
+     * @throws IllegalArgumentException if {@code count} is negative
+     */
+    public List<SkuDetails> getMostExpensive(String type, String currency, int count) {
+        checkCount(count);
+        Bucket bucket = bucket(type, currency);
+        return new View(mDetails, bucket, Math.max(0, bucket.mSize - count), bucket.mSize, true);
+    }
+
+    private static void checkCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count: " + count);
+        }
+    }
+
+    private Bucket bucket(String type, String currency) {
+        if (type == null && currency == null) return mAll;
+        Bucket bucket = mBuckets.get(key(type, currency));
+        return bucket != null ? bucket : Bucket.EMPTY;
+    }
+
+    private static Bucket.Builder bucketBuilder(Map<String, Bucket.Builder> builders, String key) {
+        Bucket.Builder builder = builders.get(key);
+        if (builder == null) {
+            builder = new Bucket.Builder();
+            builders.put(key, builder);
+        }
+        return builder;
+    }
+
+    private static String key(String type, String currency) {
+        // neither types nor currency codes contain a slash
+        return (type != null ? type : "*") + '/' + (currency != null ? currency : "*");
+    }
+
+    /**
+     * Positions in the sorted details, in price order, with their prices alongside so that
+     * searching a bucket does not leave its own arrays. The bucket of all skus has no positions.
+     */
+    private static final class Bucket {
+        static final Bucket EMPTY = new Bucket(new int[0], new long[0], 0);
+
+        final int[] mPositions;
+        final long[] mPrices;
+        final int mSize;
+
+        Bucket(int[] positions, long[] prices, int size) {
+            mPositions = positions;
+            mPrices = prices;
+            mSize = size;
+        }
+
+        int position(int index) {
+            return mPositions != null ? mPositions[index] : index;
+        }
+
+        /**
+         * @return index of the first price that is at least {@code micros}
+         */
+        int lowerBound(long micros) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPrices[mid] < micros) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * @return index after the last price that is at most {@code micros}
+         */
+        int upperBound(long micros) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPrices[mid] <= micros) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        static final class Builder {
+            private int[] mPositions = new int[8];
+            private long[] mPrices = new long[8];
+            private int mSize;
+
+            void add(int position, long price) {
+                if (mSize == mPositions.length) {
+                    mPositions = Arrays.copyOf(mPositions, mSize * 2);
+                    mPrices = Arrays.copyOf(mPrices, mSize * 2);
+                }
+                mPositions[mSize] = position;
+                mPrices[mSize] = price;
+                mSize++;
+            }
+
+            Bucket build() {
+                return new Bucket(mPositions, mPrices, mSize);
+            }
+        }
+    }
+
+    private static final class View extends AbstractList<SkuDetails> implements RandomAccess {
+        private final SkuDetails[] mDetails;
+        private final Bucket mBucket;
+        private final int mFrom;
+        private final int mSize;
+        private final boolean mDescending;
+
+        View(SkuDetails[] details, Bucket bucket, int from, int to, boolean descending) {
+            mDetails = details;
+            mBucket = bucket;
+            mFrom = from;
+            mSize = to - from;
+            mDescending = descending;
+        }
+
+        @Override
+        public SkuDetails get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+            }
+            int bucketIndex = mDescending ? mFrom + mSize - 1 - index : mFrom + index;
+            return mDetails[mBucket.position(bucketIndex)];
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+
+}
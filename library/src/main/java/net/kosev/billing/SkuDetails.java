@@ -17,27 +17,52 @@
 package net.kosev.billing;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class SkuDetails {
 
-    public String sku;
-    public String type;
-    public String price;
-    public int priceAmountMicros;
-    public String priceCurrencyCode;
-    public String title;
-    public String description;
+    public final String sku;
+    public final String type;
+    public final String price;
+    public final long priceAmountMicros;
+    public final String priceCurrencyCode;
+    public final String title;
+    public final String description;
+    public final String originalJson;
 
     SkuDetails(String jsonSkuDetails) throws JSONException {
-        JSONObject json = new JSONObject(jsonSkuDetails);
-        sku = json.optString("productId");
-        type = json.optString("type");
-        price = json.optString("price");
-        priceAmountMicros = json.optInt("price_amount_micros");
-        priceCurrencyCode = json.optString("price_currency_code");
-        title = json.optString("title");
-        description = json.optString("description");
+        String sku = "", type = "", price = "", priceCurrencyCode = "", title = "", description = "";
+        long priceAmountMicros = 0;
+
+        JsonFieldReader reader = new JsonFieldReader(jsonSkuDetails);
+        while (reader.nextField()) {
+            String name = reader.name();
+            if ("productId".equals(name)) {
+                sku = reader.stringValue();
+            } else if ("type".equals(name)) {
+                type = reader.stringValue();
+            } else if ("price".equals(name)) {
+                price = reader.stringValue();
+            } else if ("price_amount_micros".equals(name)) {
+                priceAmountMicros = reader.longValue();
+            } else if ("price_currency_code".equals(name)) {
+                priceCurrencyCode = reader.stringValue();
+            } else if ("title".equals(name)) {
+                title = reader.stringValue();
+            } else if ("description".equals(name)) {
+                description = reader.stringValue();
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        this.sku = sku;
+        this.type = type;
+        this.price = price;
+        this.priceAmountMicros = priceAmountMicros;
+        this.priceCurrencyCode = priceCurrencyCode;
+        this.title = title;
+        this.description = description;
+        originalJson = jsonSkuDetails;
     }
 
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Bounded in-memory cache of {@link SkuDetails} keyed by item type and sku.
+ * Entries are evicted least recently used first once the cache is full and
+ * expire after a fixed time. Concurrent loads that need the same missing skus
+ * share a single request to the billing service.
+ */
+@SuppressWarnings("unused")
+public class SkuDetailsCache {
+
+    interface Fetcher {
+        /**
+         * Fetches details for the skus into a new inventory. Skus without details are
+         * cached as unknown, unless they are listed in {@link Inventory#getFailedSkus()}.
+         */
+        Inventory fetch(ArrayList<String> skus) throws Exception;
+    }
+
+    private static class CacheEntry {
+        final SkuDetails mDetails;
+        final long mExpiresAt;
+
+        CacheEntry(SkuDetails details, long expiresAt) {
+            mDetails = details;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private final long mTtl;
+    private final Map<String, CacheEntry> mEntries;
+    private final Map<String, FutureTask<Inventory>> mInFlight = new HashMap<>();
+
+    /**
+     * @param maxSize maximum number of cached skus
+     * @param ttl how long details are kept, in milliseconds
+     */
+    public SkuDetailsCache(final int maxSize, long ttl) {
+        mTtl = ttl;
+        mEntries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Adds details for the skus to the inventory, fetching only the ones that are not
+     * cached and not already being fetched by another thread.
+     */
+    void load(Inventory.Builder inventory, final String itemType, List<String> skus, final Fetcher fetcher)
+            throws InterruptedException, ExecutionException {
+        final ArrayList<String> missing = new ArrayList<>();
+        Map<String, FutureTask<Inventory>> pending = new HashMap<>();
+        FutureTask<Inventory> own = null;
+
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            for (String sku : skus) {
+                String key = key(itemType, sku);
+                CacheEntry entry = mEntries.get(key);
+                if (entry != null && entry.mExpiresAt > now) {
+                    if (entry.mDetails != null) inventory.addSkuDetails(entry.mDetails);
+                    continue;
+                }
+
+                FutureTask<Inventory> inFlight = mInFlight.get(key);
+                if (inFlight != null) {
+                    pending.put(sku, inFlight);
+                } else if (!missing.contains(sku)) {
+                    missing.add(sku);
+                }
+            }
+
+            if (!missing.isEmpty()) {
+                own = new FutureTask<>(new Callable<Inventory>() {
+                    public Inventory call() throws Exception {
+                        Inventory result = null;
+                        try {
+                            result = fetcher.fetch(missing);
+                            return result;
+                        } finally {
+                            complete(itemType, missing, result);
+                        }
+                    }
+                });
+                for (String sku : missing) {
+                    mInFlight.put(key(itemType, sku), own);
+                    pending.put(sku, own);
+                }
+            }
+        }
+
+        if (own != null) own.run();
+
+        ArrayList<String> retry = null;
+        for (Map.Entry<String, FutureTask<Inventory>> entry : pending.entrySet()) {
+            String sku = entry.getKey();
+            Inventory result;
+            try {
+                result = entry.getValue().get();
+            } catch (ExecutionException e) {
+                // another thread's load was cancelled while fetching skus this one needs too
+                if (!(e.getCause() instanceof InterruptedException) || entry.getValue() == own) throw e;
+                if (retry == null) retry = new ArrayList<>();
+                retry.add(sku);
+                continue;
+            }
+            SkuDetails details = result.getSkuDetails(sku);
+            if (details != null) {
+                inventory.addSkuDetails(details);
+            } else if (result.getFailedSkus().contains(sku)) {
+                List<String> failed = new ArrayList<>(1);
+                failed.add(sku);
+                inventory.addFailedSkus(failed);
+            }
+        }
+
+        if (retry != null) load(inventory, itemType, retry, fetcher);
+    }
+
+    private synchronized void complete(String itemType, List<String> skus, Inventory result) {
+        long expiresAt = SystemClock.elapsedRealtime() + mTtl;
+        for (String sku : skus) {
+            String key = key(itemType, sku);
+            mInFlight.remove(key);
+            if (result != null && !result.getFailedSkus().contains(sku)) {
+                mEntries.put(key, new CacheEntry(result.getSkuDetails(sku), expiresAt));
+            }
+        }
+    }
+
+    private static String key(String itemType, String sku) {
+        return itemType + '/' + sku;
+    }
+
+}
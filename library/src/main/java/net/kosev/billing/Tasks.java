@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class Tasks {
+
+    /**
+     * Runs every task on the calling thread.
+     */
+    static final Executor CALLER_RUNS = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private Tasks() {
+    }
+
+    /**
+     * Runs the tasks on the executor with at most {@code maxInFlight} of them
+     * handed to it at a time and returns their results in order. The calling
+     * thread runs any task the executor has not started yet, so this never
+     * deadlocks on a saturated or rejecting executor. Completions are taken
+     * in whatever order they happen, so the first task to fail cancels the
+     * remaining ones and its exception is rethrown without waiting for the
+     * tasks submitted before it.
+     */
+    static <T> List<T> invokeAll(Executor executor, List<? extends Callable<T>> tasks, int maxInFlight)
+            throws InterruptedException, ExecutionException {
+        int count = tasks.size();
+        BlockingQueue<FutureTask<T>> completed = new LinkedBlockingQueue<>();
+        List<FutureTask<T>> futures = new ArrayList<>(count);
+        for (Callable<T> task : tasks) {
+            futures.add(new QueueingFuture<>(task, completed));
+        }
+
+        int submitted = 0;
+        int helped = 0;
+        boolean done = false;
+        try {
+            while (submitted < count && submitted < maxInFlight) {
+                execute(executor, futures.get(submitted++));
+            }
+
+            for (int finished = 0; finished < count; finished++) {
+                FutureTask<T> future = completed.poll();
+                while (future == null && helped < submitted) {
+                    // no-op when an executor thread already picked it up
+                    futures.get(helped++).run();
+                    future = completed.poll();
+                }
+                if (future == null) {
+                    future = completed.take();
+                }
+                // throws for the first failure, whichever task it came from
+                future.get();
+                if (submitted < count) {
+                    execute(executor, futures.get(submitted++));
+                }
+            }
+
+            List<T> results = new ArrayList<>(count);
+            for (FutureTask<T> future : futures) {
+                results.add(future.get());
+            }
+            done = true;
+            return results;
+        } finally {
+            if (!done) {
+                for (FutureTask<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pool whose tasks run on the calling thread once it is shut down, so work handed
+     * to it late is not dropped.
+     */
+    static ThreadPoolExecutor newThreadPool(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory(name), new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        task.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " #" + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static final class QueueingFuture<T> extends FutureTask<T> {
+        private final BlockingQueue<FutureTask<T>> mCompleted;
+
+        QueueingFuture(Callable<T> task, BlockingQueue<FutureTask<T>> completed) {
+            super(task);
+            mCompleted = completed;
+        }
+
+        @Override
+        protected void done() {
+            mCompleted.add(this);
+        }
+    }
+
+    private static void execute(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ignored) {
+            // the caller will run it
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers purchases that passed signature verification, so that loading the same
+ * purchases again skips RSA. Entries are SHA-256 digests of the public key, the purchase
+ * data and the signature, computed by {@link PurchaseVerifier}; only successful
+ * verifications are stored. Set it with {@link Billing#setVerificationCache(VerificationCache)}.
+ *
+ * <p>A cache created with a file keeps its entries across process restarts by appending
+ * every new digest to it. The file is read on first use.
+ */
+@SuppressWarnings("unused")
+public class VerificationCache {
+
+    static final int DIGEST_LENGTH = 32;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 4;
+
+    private final int mMaxSize;
+    private final File mFile;
+    private final Map<Digest, Boolean> mEntries;
+    private boolean mLoaded;
+    private int mRecords;
+
+    /**
+     * In-memory cache.
+     *
+     * @param maxSize maximum number of remembered purchases
+     */
+    public VerificationCache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * Persistent cache.
+     *
+     * @param maxSize maximum number of remembered purchases
+     * @param file where to keep the entries, in app private storage
+     */
+    public VerificationCache(final int maxSize, File file) {
+        mMaxSize = maxSize;
+        mFile = file;
+        mLoaded = file == null;
+        mEntries = new LinkedHashMap<Digest, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Digest, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mRecords = 0;
+        if (mFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        }
+    }
+
+    public synchronized int size() {
+        load();
+        return mEntries.size();
+    }
+
+    synchronized boolean contains(byte[] digest) {
+        load();
+        return mEntries.get(new Digest(digest)) != null;
+    }
+
+    synchronized void add(byte[] digest) {
+        load();
+        Digest key = new Digest(digest.clone());
+        if (mEntries.put(key, Boolean.TRUE) != null || mFile == null) return;
+
+        try {
+            if (mRecords >= mMaxSize * 2) {
+                rewrite();
+            } else {
+                append(key.mBytes);
+            }
+        } catch (IOException ignored) {
+            // still cached in memory
+        }
+    }
+
+    private void load() {
+        if (mLoaded) return;
+        mLoaded = true;
+        if (!mFile.exists()) return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown cache version");
+            }
+
+            while (true) {
+                byte[] digest = new byte[DIGEST_LENGTH];
+                try {
+                    in.readFully(digest);
+                } catch (EOFException e) {
+                    break;
+                }
+                mEntries.put(new Digest(digest), Boolean.TRUE);
+                mRecords++;
+            }
+        } catch (IOException e) {
+            // keep the entries read so far
+        } finally {
+            close(in);
+        }
+
+        // drop torn and evicted records
+        if (mFile.length() != HEADER_LENGTH + (long) mRecords * DIGEST_LENGTH || mRecords > mEntries.size()) {
+            try {
+                rewrite();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private void rewrite() throws IOException {
+        File temp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            writeHeader(out);
+            for (Digest digest : mEntries.keySet()) {
+                out.write(digest.mBytes);
+            }
+            out.close();
+            out = null;
+        } finally {
+            close(out);
+        }
+
+        if (!temp.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Cannot replace " + mFile);
+        }
+        mRecords = mEntries.size();
+    }
+
+    private void append(byte[] digest) throws IOException {
+        boolean created = !mFile.exists();
+        OutputStream out = new FileOutputStream(mFile, true);
+        try {
+            if (created) {
+                writeHeader(out);
+                mRecords = 0;
+            }
+            out.write(digest);
+            mRecords++;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void writeHeader(OutputStream out) throws IOException {
+        out.write(new byte[] { 0, 0, 0, FORMAT_VERSION });
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+
+    private static final class Digest {
+        final byte[] mBytes;
+        private final int mHash;
+
+        Digest(byte[] bytes) {
+            mBytes = bytes;
+            // the bytes are a cryptographic digest already, any four of them make a good hash
+            mHash = (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digest && Arrays.equals(mBytes, ((Digest) o).mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+}
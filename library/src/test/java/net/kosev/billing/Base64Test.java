@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link Base64} against {@link java.util.Base64} on random data, for every way of decoding,
+ * and the hand-over from the fast path for clean groups to the strict loop.
+ */
+public class Base64Test {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_LENGTH = 300;
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void encodesLikeJdk() {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            byte[] data = randomBytes(length);
+            assertEquals(java.util.Base64.getEncoder().encodeToString(data), Base64.encode(data));
+            assertEquals(java.util.Base64.getUrlEncoder().encodeToString(data), Base64.encodeWebSafe(data, true));
+            assertEquals(java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(data),
+                    Base64.encodeWebSafe(data, false));
+        }
+    }
+
+    @Test
+    public void decodesPaddedAndUnpadded() throws Exception {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            byte[] data = randomBytes(length);
+            String padded = java.util.Base64.getEncoder().encodeToString(data);
+            String unpadded = java.util.Base64.getEncoder().withoutPadding().encodeToString(data);
+
+            assertArrayEquals(data, Base64.decode(padded));
+            assertArrayEquals(data, Base64.decode(unpadded));
+            assertArrayEquals(data, Base64.decode(padded.getBytes(ASCII)));
+            assertArrayEquals(data, Base64.decode(unpadded.getBytes(ASCII)));
+        }
+    }
+
+    @Test
+    public void decodesWebSafe() throws Exception {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            byte[] data = randomBytes(length);
+            String padded = java.util.Base64.getUrlEncoder().encodeToString(data);
+            String unpadded = java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+
+            assertArrayEquals(data, Base64.decodeWebSafe(padded));
+            assertArrayEquals(data, Base64.decodeWebSafe(unpadded));
+            assertArrayEquals(data, Base64.decodeWebSafe(padded.getBytes(ASCII)));
+        }
+    }
+
+    @Test
+    public void decodesIntoBuffers() throws Exception {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            byte[] data = randomBytes(length);
+            String encoded = java.util.Base64.getEncoder().encodeToString(data);
+            String framed = "[[" + encoded + "]]";
+
+            byte[] destination = new byte[3 + Base64.maxDecodedLength(encoded.length())];
+            int decoded = Base64.decode(framed, 2, encoded.length(), destination, 3);
+            assertArrayEquals(data, Arrays.copyOfRange(destination, 3, 3 + decoded));
+
+            assertArrayEquals(data, decodeBuffers(ByteBuffer.wrap(encoded.getBytes(ASCII)),
+                    ByteBuffer.allocate(Base64.maxDecodedLength(encoded.length()))));
+            assertArrayEquals(data, decodeBuffers(toDirect(encoded.getBytes(ASCII)),
+                    ByteBuffer.allocateDirect(Base64.maxDecodedLength(encoded.length()))));
+        }
+    }
+
+    @Test
+    public void skipsWhitespace() throws Exception {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            byte[] data = randomBytes(length);
+            // line breaks every 76 characters
+            String mime = java.util.Base64.getMimeEncoder().encodeToString(data);
+            assertArrayEquals(data, Base64.decode(mime));
+            assertArrayEquals(data, Base64.decode(mime.getBytes(ASCII)));
+
+            String spaced = insertWhitespace(java.util.Base64.getEncoder().encodeToString(data));
+            assertArrayEquals(java.util.Base64.getMimeDecoder().decode(spaced), Base64.decode(spaced));
+            assertArrayEquals(data, Base64.decode(spaced.getBytes(ASCII)));
+        }
+    }
+
+    @Test
+    public void fastPathHandsOverToStrictLoop() throws Exception {
+        // several clean groups on both sides of every position
+        byte[] data = randomBytes(60);
+        String encoded = java.util.Base64.getEncoder().encodeToString(data);
+        for (int i = 0; i <= encoded.length(); i++) {
+            String head = encoded.substring(0, i);
+            String tail = encoded.substring(i);
+            assertDecodesEverywhere(data, head + '\n' + tail);
+            assertDecodesEverywhere(data, head + " \t" + tail);
+            if (i < encoded.length()) {
+                assertRejectedEverywhere(head + '!' + tail.substring(1));
+                assertRejected(head + '\u00e9' + tail.substring(1));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] inputs = {
+                "Q",
+                "QUJDR",
+                "Q===",
+                "=QUI",
+                "QQ!=",
+                "QQ=A",
+                "QUJD=Q==",
+                "QUJ\u00e9",
+                "QUJD\u0000",
+                "-_-_",
+        };
+        for (String input : inputs) {
+            assertMalformed(input);
+        }
+    }
+
+    @Test
+    public void rejectsStandardAlphabetWhenWebSafe() {
+        try {
+            java.util.Base64.getUrlDecoder().decode("+/+/");
+            fail("JDK accepted +/+/");
+        } catch (IllegalArgumentException expected) {
+            // both must reject it
+        }
+        try {
+            Base64.decodeWebSafe("+/+/");
+            fail("Base64 accepted +/+/");
+        } catch (Base64.Base64Exception expected) {
+            // both must reject it
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        mRandom.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Puts spaces, tabs and line breaks between the characters before the padding.
+     */
+    private String insertWhitespace(String encoded) {
+        String whitespace = " \t\r\n";
+        int end = encoded.indexOf('=');
+        if (end < 0) end = encoded.length();
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i++) {
+            if (i < end && mRandom.nextInt(4) == 0) {
+                builder.append(whitespace.charAt(mRandom.nextInt(whitespace.length())));
+            }
+            builder.append(encoded.charAt(i));
+        }
+        return builder.toString();
+    }
+
+    private static ByteBuffer toDirect(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] decodeBuffers(ByteBuffer source, ByteBuffer destination) throws Exception {
+        int decoded = Base64.decode(source, destination);
+        assertEquals(0, source.remaining());
+        assertEquals(decoded, destination.position());
+
+        byte[] result = new byte[decoded];
+        destination.flip();
+        destination.get(result);
+        return result;
+    }
+
+    private static void assertDecodesEverywhere(byte[] data, String encoded) throws Exception {
+        byte[] bytes = encoded.getBytes(ASCII);
+        assertArrayEquals(data, Base64.decode(encoded));
+        assertArrayEquals(data, Base64.decode(bytes));
+
+        byte[] destination = new byte[Base64.maxDecodedLength(encoded.length())];
+        int decoded = Base64.decode(encoded, 0, encoded.length(), destination, 0);
+        assertArrayEquals(data, Arrays.copyOf(destination, decoded));
+        assertArrayEquals(data, decodeBuffers(ByteBuffer.wrap(bytes),
+                ByteBuffer.allocate(Base64.maxDecodedLength(bytes.length))));
+    }
+
+    private static void assertRejectedEverywhere(String encoded) {
+        assertRejected(encoded);
+        try {
+            Base64.decode(encoded.getBytes(ASCII));
+            fail("Base64 accepted bytes of " + encoded);
+        } catch (Base64.Base64Exception expected) {
+            // from the strict loop that took over
+        }
+    }
+
+    private static void assertRejected(String encoded) {
+        try {
+            Base64.decode(encoded);
+            fail("Base64 accepted " + encoded);
+        } catch (Base64.Base64Exception expected) {
+            // from the strict loop that took over
+        }
+        try {
+            Base64.decode(encoded, 0, encoded.length(), new byte[Base64.maxDecodedLength(encoded.length())], 0);
+            fail("Base64 accepted " + encoded + " into a buffer");
+        } catch (Base64.Base64Exception expected) {
+            // from the strict loop that took over
+        }
+    }
+
+    private static void assertMalformed(String input) {
+        try {
+            java.util.Base64.getDecoder().decode(input);
+            fail("JDK accepted " + input);
+        } catch (IllegalArgumentException expected) {
+            // both must reject it
+        }
+        try {
+            Base64.decode(input);
+            fail("Base64 accepted " + input);
+        } catch (Base64.Base64Exception expected) {
+            // both must reject it
+        }
+    }
+
+}
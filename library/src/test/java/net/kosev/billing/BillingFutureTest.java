@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.app.Activity;
+import android.content.ComponentName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Chaining and cancellation of {@link BillingFuture}s returned by {@link Billing}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class BillingFutureTest {
+
+    private static final int OWNED_ITEMS = 100;
+    private static final int PAGE_SIZE = 5;
+    private static final int REQUEST_PURCHASE = 1001;
+
+    private FakeBillingService mService;
+    private LoadTestHarness mHarness;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new FakeBillingService(RuntimeEnvironment.application, 3)
+                .setPageSize(PAGE_SIZE)
+                .setCatalogSize(OWNED_ITEMS)
+                .addOwned(OWNED_ITEMS);
+
+        Shadows.shadowOf(RuntimeEnvironment.application).setComponentNameAndServiceForBindService(
+                new ComponentName("com.android.vending", "InAppBillingService"), mService);
+        mHarness = new LoadTestHarness(RuntimeEnvironment.application, mService, new LoadTestHarness.Config());
+    }
+
+    @After
+    public void tearDown() {
+        mHarness.shutdown();
+    }
+
+    @Test
+    public void chainedLoadAndConsume() throws Exception {
+        final Billing billing = mHarness.createBilling();
+        try {
+            final ArrayList<String> skus = new ArrayList<>();
+            skus.add(FakeBillingService.sku(0));
+
+            BillingFuture<Purchase> consumed = billing.loadInventory(skus)
+                    .then(new BillingFuture.Continuation<Inventory, Purchase>() {
+                        public BillingFuture<Purchase> then(Inventory inventory) {
+                            return billing.consume(inventory.getPurchase(FakeBillingService.sku(0)));
+                        }
+                    });
+
+            assertEquals(FakeBillingService.sku(0), consumed.get(10, TimeUnit.SECONDS).sku);
+            assertEquals(OWNED_ITEMS - 1, mService.getOwnedCount());
+        } finally {
+            billing.destroy();
+        }
+    }
+
+    @Test
+    public void cancelStopsRunningLoad() throws Exception {
+        Billing billing = mHarness.createBilling();
+        try {
+            mService.holdGetPurchases();
+            BillingFuture<Inventory> load = billing.loadInventory(new ArrayList<String>());
+            assertTrue(mService.awaitGetPurchasesHeld(10, TimeUnit.SECONDS));
+            assertTrue(load.cancel(true));
+            long calls = getPurchasesCalls();
+            mService.releaseGetPurchases();
+            try {
+                load.get();
+                fail();
+            } catch (CancellationException expected) {
+            }
+            assertEquals(Billing.BILLING_CANCELLED, load.getResponse());
+
+            // the queue moves on, once the cancelled load has stopped
+            Inventory inventory = billing.loadInventory(new ArrayList<String>()).get(10, TimeUnit.SECONDS);
+            assertEquals(OWNED_ITEMS, inventory.getAllPurchases().size());
+            // owned items are all in-app products, subscriptions take a single page
+            long pages = OWNED_ITEMS / PAGE_SIZE + 1;
+            // the cancelled load completes at most the calls held for both item types
+            assertTrue(getPurchasesCalls() <= calls + 2 + pages);
+        } finally {
+            billing.destroy();
+        }
+    }
+
+    @Test
+    public void cancelQueuedLoadKeepsMergedOne() throws Exception {
+        Billing billing = mHarness.createBilling();
+        try {
+            mService.setLatency(20, 0);
+            ArrayList<String> skus = new ArrayList<>();
+            skus.add(FakeBillingService.sku(1));
+            BillingFuture<Inventory> running = billing.loadInventory(skus);
+            BillingFuture<Inventory> cancelled = billing.loadInventory(skus);
+            BillingFuture<Inventory> kept = billing.loadInventory(skus);
+
+            assertTrue(cancelled.cancel(true));
+            assertEquals(OWNED_ITEMS, kept.get(10, TimeUnit.SECONDS).getAllPurchases().size());
+            assertEquals(OWNED_ITEMS, running.get(10, TimeUnit.SECONDS).getAllPurchases().size());
+            assertTrue(cancelled.isCancelled());
+        } finally {
+            billing.destroy();
+        }
+    }
+
+    @Test
+    public void cancelledFlowDoesNotTakeResultOfAnother() throws Exception {
+        Billing billing = mHarness.createBilling();
+        try {
+            LoadTestHarness.PurchaseActivity activity = Robolectric.setupActivity(LoadTestHarness.PurchaseActivity.class);
+            BillingFuture<Purchase> cancelled = billing.launchPurchaseFlow(activity, FakeBillingService.sku(0),
+                    Billing.TYPE_INAPP, REQUEST_PURCHASE);
+            BillingFuture<Purchase> kept = billing.launchPurchaseFlow(activity, FakeBillingService.sku(1),
+                    Billing.TYPE_INAPP, REQUEST_PURCHASE);
+            FakeBillingService.BuyRequest first = mService.takeBuyRequest(10, TimeUnit.SECONDS);
+            FakeBillingService.BuyRequest second = mService.takeBuyRequest(10, TimeUnit.SECONDS);
+            assertTrue(cancelled.cancel(true));
+
+            // the Play Store screen of the cancelled flow still completes
+            billing.onActivityResult(REQUEST_PURCHASE, Activity.RESULT_OK, mService.completePurchase(first));
+            assertFalse(kept.isDone());
+
+            billing.onActivityResult(REQUEST_PURCHASE, Activity.RESULT_OK, mService.completePurchase(second));
+            assertEquals(FakeBillingService.sku(1), kept.get(10, TimeUnit.SECONDS).sku);
+            assertTrue(cancelled.isCancelled());
+        } finally {
+            billing.destroy();
+        }
+    }
+
+    private long getPurchasesCalls() {
+        return mHarness.getMetrics().getCallLatency(BillingMetrics.CALL_GET_PURCHASES).getCount();
+    }
+
+}
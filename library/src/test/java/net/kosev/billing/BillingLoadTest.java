@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.content.ComponentName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of {@link Billing} against {@link FakeBillingService}. Skipped by the regular
+ * unit test run; start it with {@code ./gradlew :library:testDebugUnitTest -PloadTest} and
+ * tune it with {@code -Ploadtest.*} properties, see {@link LoadTestHarness.Config}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class BillingLoadTest {
+
+    private LoadTestHarness.Config mConfig;
+    private FakeBillingService mService;
+    private LoadTestHarness mHarness;
+
+    @Before
+    public void setUp() throws Exception {
+        mConfig = new LoadTestHarness.Config();
+        mService = new FakeBillingService(RuntimeEnvironment.application, mConfig.seed)
+                .setLatency(mConfig.latencyMillis, mConfig.jitterMillis)
+                .setErrorRate(mConfig.errorRate)
+                .setPageSize(mConfig.pageSize)
+                .setCatalogSize(mConfig.catalogSize)
+                .addOwned(mConfig.ownedItems);
+
+        Shadows.shadowOf(RuntimeEnvironment.application).setComponentNameAndServiceForBindService(
+                new ComponentName("com.android.vending", "InAppBillingService"), mService);
+        mHarness = new LoadTestHarness(RuntimeEnvironment.application, mService, mConfig);
+    }
+
+    @After
+    public void tearDown() {
+        mHarness.shutdown();
+    }
+
+    @Test
+    public void loadInventoryAndPurchase() throws Exception {
+        Billing billing = mHarness.createBilling();
+        try {
+            LoadTestHarness.Result loads = mHarness.runLoads(billing);
+            LoadTestHarness.Result purchases = mHarness.runPurchases(billing);
+
+            System.out.println(loads);
+            System.out.println(purchases);
+            System.out.println(mHarness.describeServiceCalls());
+
+            assertEquals(0, loads.getTimeouts());
+            assertEquals(0, purchases.getTimeouts());
+            assertTrue(loads.getOperations() >= mConfig.loadCycles);
+        } finally {
+            billing.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.content.ComponentName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Operations around a failed {@link Billing#create(Billing.CreateListener)}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class BillingSetupTest {
+
+    private static final int OWNED_ITEMS = 10;
+
+    private FakeBillingService mService;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new FakeBillingService(RuntimeEnvironment.application, 4)
+                .setCatalogSize(OWNED_ITEMS)
+                .addOwned(OWNED_ITEMS)
+                .setSupportResponse(Billing.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+
+        Shadows.shadowOf(RuntimeEnvironment.application).setComponentNameAndServiceForBindService(
+                new ComponentName("com.android.vending", "InAppBillingService"), mService);
+    }
+
+    @Test
+    public void loadAfterFailedSetupFails() throws Exception {
+        Billing billing = newBilling();
+        try {
+            // queued before setup completes, failed along with it
+            BillingFuture<Inventory> queued = billing.loadInventory(new ArrayList<String>());
+            assertEquals(Billing.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, create(billing));
+            assertFailed(Billing.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, queued);
+
+            final CountDownLatch failed = new CountDownLatch(1);
+            final int[] error = { Billing.BILLING_RESPONSE_RESULT_OK };
+            billing.loadInventory(new ArrayList<String>(), new Billing.InventoryListener() {
+                public void onSuccess(Inventory inventory) {
+                    failed.countDown();
+                }
+
+                public void onError(int response, Exception e) {
+                    error[0] = response;
+                    failed.countDown();
+                }
+            });
+            LoadTestHarness.awaitOnMainThread(failed);
+            assertEquals(Billing.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, error[0]);
+
+            assertFailed(Billing.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                    billing.launchPurchaseFlow(null, FakeBillingService.sku(0), Billing.TYPE_INAPP, 1001));
+        } finally {
+            billing.destroy();
+        }
+    }
+
+    @Test
+    public void createAgainAfterFailedSetup() throws Exception {
+        Billing billing = newBilling();
+        try {
+            assertEquals(Billing.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, create(billing));
+
+            mService.setSupportResponse(Billing.BILLING_RESPONSE_RESULT_OK);
+            assertEquals(Billing.BILLING_RESPONSE_RESULT_OK, create(billing));
+            Inventory inventory = billing.loadInventory(new ArrayList<String>()).get(10, TimeUnit.SECONDS);
+            assertEquals(OWNED_ITEMS, inventory.getAllPurchases().size());
+        } finally {
+            billing.destroy();
+        }
+    }
+
+    private Billing newBilling() {
+        Billing billing = new Billing(RuntimeEnvironment.application, mService.getPublicKey());
+        // failures reach the futures without the main looper running
+        billing.setCallbackExecutor(Tasks.CALLER_RUNS);
+        return billing;
+    }
+
+    private static int create(Billing billing) throws InterruptedException {
+        final CountDownLatch created = new CountDownLatch(1);
+        final int[] result = { Billing.BILLING_RESPONSE_RESULT_OK };
+        billing.create(new Billing.CreateListener() {
+            public void onSuccess() {
+                created.countDown();
+            }
+
+            public void onError(int response, Exception e) {
+                result[0] = response;
+                created.countDown();
+            }
+        });
+        LoadTestHarness.awaitOnMainThread(created);
+        return result[0];
+    }
+
+    private static void assertFailed(int response, BillingFuture<?> future) throws InterruptedException {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+        } catch (TimeoutException e) {
+            fail("Still waiting");
+        }
+        assertEquals(response, future.getResponse());
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Calls {@link Billing} from many threads at once, with and without a concurrent
+ * {@link Billing#destroy()}, and checks that every listener is called exactly once
+ * and that the inventory version never goes back.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class BillingStressTest {
+
+    private static final int THREADS = 12;
+    private static final int OPERATIONS_PER_THREAD = 150;
+    private static final int REQUEST_PURCHASE = 1001;
+    private static final int CATALOG_SIZE = 60;
+
+    private FakeBillingService mService;
+    private LoadTestHarness mHarness;
+    private LoadTestHarness.PurchaseActivity mActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        LoadTestHarness.Config config = new LoadTestHarness.Config();
+        mService = new FakeBillingService(RuntimeEnvironment.application, 7)
+                .setLatency(0, 1)
+                .setErrorRate(0.05)
+                .setPageSize(10)
+                .setCatalogSize(CATALOG_SIZE)
+                .addOwned(20);
+
+        Shadows.shadowOf(RuntimeEnvironment.application).setComponentNameAndServiceForBindService(
+                new ComponentName("com.android.vending", "InAppBillingService"), mService);
+        mHarness = new LoadTestHarness(RuntimeEnvironment.application, mService, config);
+        mActivity = Robolectric.setupActivity(LoadTestHarness.PurchaseActivity.class);
+    }
+
+    @After
+    public void tearDown() {
+        mHarness.shutdown();
+    }
+
+    @Test
+    public void concurrentOperations() throws Exception {
+        Billing billing = mHarness.createBilling();
+        try {
+            Stress stress = new Stress(billing, THREADS * OPERATIONS_PER_THREAD);
+            stress.run(-1);
+
+            assertEquals(0, stress.mVersionRegressions.get());
+            assertEquals(0, stress.mMisrouted.get());
+            stress.assertCalledOnce();
+        } finally {
+            billing.destroy();
+        }
+    }
+
+    @Test
+    public void concurrentOperationsAndDestroy() throws Exception {
+        Billing billing = mHarness.createBilling();
+        Stress stress = new Stress(billing, THREADS * OPERATIONS_PER_THREAD);
+        stress.run(THREADS * OPERATIONS_PER_THREAD / 3);
+
+        assertEquals(0, stress.mVersionRegressions.get());
+        assertEquals(0, stress.mMisrouted.get());
+        stress.assertCalledOnce();
+
+        // late calls fail right away
+        final CountDownLatch failed = new CountDownLatch(2);
+        billing.loadInventory(new ArrayList<String>(), new Billing.InventoryListener() {
+            public void onSuccess(Inventory inventory) {
+            }
+
+            public void onError(int response, Exception e) {
+                if (response == Billing.BILLING_DISPOSED) failed.countDown();
+            }
+        });
+        billing.launchPurchaseFlow(mActivity, FakeBillingService.sku(0), Billing.TYPE_INAPP, REQUEST_PURCHASE,
+                new Billing.PurchaseListener() {
+                    public void onSuccess(Purchase purchase) {
+                    }
+
+                    public void onError(int response, Exception e) {
+                        if (response == Billing.BILLING_DISPOSED) failed.countDown();
+                    }
+                });
+        billing.destroy();
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * One round of random operations. Every operation has an id and its listener counts
+     * the calls it gets under that id.
+     */
+    private class Stress {
+        final Billing mBilling;
+        final int mOperations;
+        final AtomicIntegerArray mCalls;
+        final AtomicInteger mIssued = new AtomicInteger();
+        final AtomicInteger mVersionRegressions = new AtomicInteger();
+        final AtomicInteger mMisrouted = new AtomicInteger();
+        final CountDownLatch mDone;
+        volatile boolean mStopped;
+
+        Stress(Billing billing, int operations) {
+            mBilling = billing;
+            mOperations = operations;
+            mCalls = new AtomicIntegerArray(operations);
+            mDone = new CountDownLatch(operations);
+        }
+
+        /**
+         * @param destroyAfter number of issued operations after which another thread
+         *                     destroys the instance, or -1 to keep it
+         */
+        void run(final int destroyAfter) throws InterruptedException {
+            Thread completer = new Thread("Stress completer") {
+                @Override
+                public void run() {
+                    completePurchaseFlows(new Random(99));
+                }
+            };
+            completer.start();
+
+            if (destroyAfter >= 0) {
+                new Thread("Stress destroy") {
+                    @Override
+                    public void run() {
+                        while (mIssued.get() < destroyAfter) Thread.yield();
+                        mBilling.destroy();
+                    }
+                }.start();
+            }
+
+            for (int t = 0; t < THREADS; t++) {
+                final int seed = t;
+                new Thread("Stress #" + t) {
+                    @Override
+                    public void run() {
+                        Random random = new Random(seed);
+                        long version = 0;
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            issue(random, mIssued.getAndIncrement());
+
+                            long current = mBilling.getInventoryVersion();
+                            if (current < version) mVersionRegressions.incrementAndGet();
+                            version = current;
+                        }
+                    }
+                }.start();
+            }
+
+            LoadTestHarness.awaitOnMainThread(mDone);
+            mStopped = true;
+            completer.join();
+            // give stray second calls a chance to show up
+            Thread.sleep(100);
+        }
+
+        private void issue(Random random, final int id) {
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                ArrayList<String> skus = new ArrayList<>();
+                for (int i = random.nextInt(30); i > 0; i--) {
+                    skus.add(FakeBillingService.sku(random.nextInt(CATALOG_SIZE + 5)));
+                }
+                Billing.PurchasesListener purchasesListener = null;
+                if (random.nextBoolean()) {
+                    purchasesListener = new Billing.PurchasesListener() {
+                        public void onPurchases(String itemType, List<Purchase> purchases) {
+                        }
+                    };
+                }
+                mBilling.loadInventory(skus, new Billing.InventoryListener() {
+                    public void onSuccess(Inventory inventory) {
+                        called(id);
+                    }
+
+                    public void onError(int response, Exception e) {
+                        called(id);
+                    }
+                }, purchasesListener);
+            } else if (operation < 8) {
+                final String sku = FakeBillingService.sku(random.nextInt(CATALOG_SIZE));
+                // a request code of its own, so a cancellation can only belong to this flow
+                mBilling.launchPurchaseFlow(mActivity, sku, Billing.TYPE_INAPP, REQUEST_PURCHASE + id,
+                        new Billing.PurchaseListener() {
+                            public void onSuccess(Purchase purchase) {
+                                if (!sku.equals(purchase.sku)) mMisrouted.incrementAndGet();
+                                called(id);
+                            }
+
+                            public void onError(int response, Exception e) {
+                                called(id);
+                            }
+                        });
+            } else {
+                switch (operation) {
+                    case 8:
+                        mBilling.setSkuDetailsCache(random.nextBoolean() ? new SkuDetailsCache(100, 60000) : null);
+                        break;
+                    default:
+                        mBilling.setVerificationCache(random.nextBoolean() ? new VerificationCache(100) : null);
+                        break;
+                }
+                called(id);
+            }
+        }
+
+        private void called(int id) {
+            if (mCalls.incrementAndGet(id) == 1) mDone.countDown();
+        }
+
+        /**
+         * Plays the Play Store: answers every started flow with a purchase or a cancellation,
+         * in the order they were started, and sometimes repeats the result or adds a stray one.
+         */
+        private void completePurchaseFlows(Random random) {
+            try {
+                while (!mStopped) {
+                    Object event = mActivity.mEvents.poll(5, TimeUnit.MILLISECONDS);
+                    if (event != LoadTestHarness.PurchaseActivity.FLOW_STARTED) continue;
+
+                    int requestCode = mActivity.mRequestCodes.take();
+                    FakeBillingService.BuyRequest request = mService.takeBuyRequest(5, TimeUnit.SECONDS);
+                    if (request == null) continue;
+                    int resultCode = Activity.RESULT_CANCELED;
+                    Intent data = null;
+                    if (random.nextInt(4) != 0) {
+                        resultCode = Activity.RESULT_OK;
+                        data = mService.completePurchase(request);
+                    }
+                    mBilling.onActivityResult(requestCode, resultCode, data);
+                    if (random.nextInt(10) == 0) {
+                        mBilling.onActivityResult(requestCode, resultCode, data);
+                    }
+                    if (random.nextInt(10) == 0) {
+                        mBilling.onActivityResult(requestCode, Activity.RESULT_CANCELED, null);
+                    }
+                    if (random.nextInt(10) == 0) {
+                        mBilling.onActivityResult(REQUEST_PURCHASE - 1, Activity.RESULT_CANCELED, null);
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void assertCalledOnce() {
+            for (int id = 0; id < mOperations; id++) {
+                assertEquals("calls of operation " + id, 1, mCalls.get(id));
+            }
+        }
+    }
+
+}
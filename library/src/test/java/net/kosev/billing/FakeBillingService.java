@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process billing service that answers like the Play Store one and signs purchases
+ * with its own RSA key. Latency, error rate, page size and catalog size are configurable;
+ * all methods are thread safe.
+ */
+class FakeBillingService extends IInAppBillingService.Stub {
+
+    static final int MAX_SKUS_PER_REQUEST = 20;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Context mContext;
+    private final KeyPair mKeyPair;
+    private final Random mRandom;
+    private final Map<String, String> mOwned = new LinkedHashMap<>();
+    private final BlockingQueue<BuyRequest> mBuyRequests = new LinkedBlockingQueue<>();
+    private final AtomicInteger mOrders = new AtomicInteger();
+
+    private volatile long mLatencyMillis = 0;
+    private volatile long mLatencyJitterMillis = 0;
+    private volatile double mErrorRate = 0;
+    private volatile int mPageSize = 100;
+    private volatile int mCatalogSize = 50;
+    private volatile int mSupportResponse = Billing.BILLING_RESPONSE_RESULT_OK;
+    private volatile CountDownLatch mPurchasesGate = null;
+    private final Semaphore mPurchasesHeld = new Semaphore(0);
+
+    static class BuyRequest {
+        final String sku;
+        final String itemType;
+        final String developerPayload;
+
+        BuyRequest(String sku, String itemType, String developerPayload) {
+            this.sku = sku;
+            this.itemType = itemType;
+            this.developerPayload = developerPayload;
+        }
+    }
+
+    FakeBillingService(Context context, long seed) throws GeneralSecurityException {
+        mContext = context;
+        mRandom = new Random(seed);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        mKeyPair = generator.generateKeyPair();
+    }
+
+    /**
+     * Base64 public key to create {@link Billing} with.
+     */
+    String getPublicKey() {
+        return Base64.encode(mKeyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * Every call sleeps {@code latency} plus a random part up to {@code jitter}.
+     */
+    FakeBillingService setLatency(long latencyMillis, long jitterMillis) {
+        mLatencyMillis = latencyMillis;
+        mLatencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Share of calls that fail with {@link Billing#BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE}.
+     */
+    FakeBillingService setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Owned items returned per {@code getPurchases} page before a continuation token.
+     */
+    FakeBillingService setPageSize(int pageSize) {
+        mPageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Number of skus, named {@code sku_0} and up, that have details.
+     */
+    FakeBillingService setCatalogSize(int catalogSize) {
+        mCatalogSize = catalogSize;
+        return this;
+    }
+
+    /**
+     * Response of {@code isBillingSupported} for every item type.
+     */
+    FakeBillingService setSupportResponse(int response) {
+        mSupportResponse = response;
+        return this;
+    }
+
+    /**
+     * Makes {@code getPurchases} calls wait inside the service until
+     * {@link #releaseGetPurchases()}, interrupts included.
+     */
+    FakeBillingService holdGetPurchases() {
+        mPurchasesGate = new CountDownLatch(1);
+        return this;
+    }
+
+    /**
+     * Waits until a {@code getPurchases} call is held by {@link #holdGetPurchases()}.
+     */
+    boolean awaitGetPurchasesHeld(long timeout, TimeUnit unit) throws InterruptedException {
+        return mPurchasesHeld.tryAcquire(timeout, unit);
+    }
+
+    /**
+     * Lets held and later {@code getPurchases} calls through.
+     */
+    void releaseGetPurchases() {
+        CountDownLatch gate = mPurchasesGate;
+        mPurchasesGate = null;
+        if (gate != null) gate.countDown();
+    }
+
+    static String sku(int index) {
+        return "sku_" + index;
+    }
+
+    /**
+     * Makes {@code count} catalog items owned without going through a purchase flow.
+     */
+    synchronized FakeBillingService addOwned(int count) throws GeneralSecurityException {
+        for (int i = 0; i < count; i++) {
+            own(sku(i), "");
+        }
+        return this;
+    }
+
+    /**
+     * Waits for the next {@code getBuyIntent} call.
+     */
+    BuyRequest takeBuyRequest(long timeout, TimeUnit unit) throws InterruptedException {
+        return mBuyRequests.poll(timeout, unit);
+    }
+
+    /**
+     * Completes a purchase flow: the item becomes owned and the returned intent is the
+     * result the Play Store activity would deliver.
+     */
+    synchronized Intent completePurchase(BuyRequest request) throws GeneralSecurityException {
+        String purchaseData = own(request.sku, request.developerPayload);
+        Intent data = new Intent();
+        data.putExtra(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_OK);
+        data.putExtra(Billing.RESPONSE_INAPP_PURCHASE_DATA, purchaseData);
+        data.putExtra(Billing.RESPONSE_INAPP_SIGNATURE, mOwned.get(purchaseData));
+        return data;
+    }
+
+    synchronized int getOwnedCount() {
+        return mOwned.size();
+    }
+
+    public int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+        simulateLatency();
+        return mSupportResponse;
+    }
+
+    public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) throws RemoteException {
+        simulateLatency();
+        Bundle result = new Bundle();
+        if (simulateError()) {
+            result.putInt(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+            return result;
+        }
+
+        ArrayList<String> skus = skusBundle.getStringArrayList(Billing.GET_SKU_DETAILS_ITEM_LIST);
+        if (skus == null || skus.size() > MAX_SKUS_PER_REQUEST) {
+            result.putInt(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+            return result;
+        }
+
+        ArrayList<String> details = new ArrayList<>(skus.size());
+        for (String sku : skus) {
+            int index = indexOf(sku);
+            if (index < 0 || index >= mCatalogSize) continue;
+            long micros = (index % 100 + 1) * 990000L;
+            details.add("{\"productId\":\"" + sku + "\",\"type\":\"" + type + "\",\"price\":\"$" + (micros / 1000000.0)
+                    + "\",\"price_amount_micros\":" + micros + ",\"price_currency_code\":\"USD\","
+                    + "\"title\":\"Item " + index + "\",\"description\":\"Test item " + index + "\"}");
+        }
+        result.putInt(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_OK);
+        result.putStringArrayList(Billing.RESPONSE_GET_SKU_DETAILS_LIST, details);
+        return result;
+    }
+
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload) throws RemoteException {
+        simulateLatency();
+        Bundle result = new Bundle();
+        if (simulateError()) {
+            result.putInt(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+            return result;
+        }
+
+        PendingIntent intent = PendingIntent.getActivity(mContext, 0, new Intent(), 0);
+        result.putInt(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_OK);
+        result.putParcelable(Billing.RESPONSE_BUY_INTENT, intent);
+        mBuyRequests.add(new BuyRequest(sku, type, developerPayload));
+        return result;
+    }
+
+    public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) throws RemoteException {
+        hold(mPurchasesGate);
+        simulateLatency();
+        Bundle result = new Bundle();
+        if (simulateError()) {
+            result.putInt(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+            return result;
+        }
+
+        ArrayList<String> skus = new ArrayList<>();
+        ArrayList<String> data = new ArrayList<>();
+        ArrayList<String> signatures = new ArrayList<>();
+        int start = continuationToken != null ? Integer.parseInt(continuationToken) : 0;
+        int end;
+        synchronized (this) {
+            // owned items are all in-app products, subscriptions are always empty
+            List<Map.Entry<String, String>> owned = Billing.TYPE_INAPP.equals(type)
+                    ? new ArrayList<>(mOwned.entrySet()) : new ArrayList<Map.Entry<String, String>>();
+            end = Math.min(start + mPageSize, owned.size());
+            for (int i = start; i < end; i++) {
+                Map.Entry<String, String> entry = owned.get(i);
+                skus.add(skuOf(entry.getKey()));
+                data.add(entry.getKey());
+                signatures.add(entry.getValue());
+            }
+            if (end < owned.size()) {
+                result.putString(Billing.RESPONSE_INAPP_CONTINUATION_TOKEN, String.valueOf(end));
+            }
+        }
+
+        result.putInt(Billing.RESPONSE_CODE, Billing.BILLING_RESPONSE_RESULT_OK);
+        result.putStringArrayList(Billing.RESPONSE_INAPP_ITEM_LIST, skus);
+        result.putStringArrayList(Billing.RESPONSE_INAPP_PURCHASE_DATA_LIST, data);
+        result.putStringArrayList(Billing.RESPONSE_INAPP_SIGNATURE_LIST, signatures);
+        return result;
+    }
+
+    public int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException {
+        simulateLatency();
+        if (simulateError()) return Billing.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE;
+
+        synchronized (this) {
+            for (String purchaseData : mOwned.keySet()) {
+                if (purchaseData.contains("\"purchaseToken\":\"" + purchaseToken + "\"")) {
+                    mOwned.remove(purchaseData);
+                    return Billing.BILLING_RESPONSE_RESULT_OK;
+                }
+            }
+        }
+        return Billing.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+    }
+
+    /**
+     * Signs and stores a new purchase of the sku, replacing an older one.
+     *
+     * @return the purchase data
+     */
+    private String own(String sku, String developerPayload) throws GeneralSecurityException {
+        for (String purchaseData : mOwned.keySet()) {
+            if (skuOf(purchaseData).equals(sku)) {
+                mOwned.remove(purchaseData);
+                break;
+            }
+        }
+
+        int order = mOrders.incrementAndGet();
+        String purchaseData = "{\"orderId\":\"GPA.0000-" + order + "\",\"packageName\":\"" + mContext.getPackageName()
+                + "\",\"productId\":\"" + sku + "\",\"purchaseTime\":" + (1500000000000L + order)
+                + ",\"purchaseState\":0,\"developerPayload\":\"" + developerPayload
+                + "\",\"purchaseToken\":\"token_" + order + "\"}";
+        mOwned.put(purchaseData, sign(purchaseData));
+        return purchaseData;
+    }
+
+    private String sign(String data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(mKeyPair.getPrivate());
+        signature.update(data.getBytes(UTF_8));
+        return Base64.encode(signature.sign());
+    }
+
+    private static String skuOf(String purchaseData) {
+        int start = purchaseData.indexOf("\"productId\":\"") + 13;
+        return purchaseData.substring(start, purchaseData.indexOf('"', start));
+    }
+
+    private static int indexOf(String sku) {
+        if (!sku.startsWith("sku_")) return -1;
+        try {
+            return Integer.parseInt(sku.substring(4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void hold(CountDownLatch gate) {
+        if (gate == null) return;
+
+        mPurchasesHeld.release();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                gate.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void simulateLatency() {
+        long latency = mLatencyMillis;
+        long jitter = mLatencyJitterMillis;
+        if (jitter > 0) {
+            synchronized (mRandom) {
+                latency += (long) (mRandom.nextDouble() * jitter);
+            }
+        }
+        if (latency <= 0) return;
+
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean simulateError() {
+        double errorRate = mErrorRate;
+        if (errorRate <= 0) return false;
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < errorRate;
+        }
+    }
+
+}
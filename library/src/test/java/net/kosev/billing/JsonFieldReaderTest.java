@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link JsonFieldReader} against the {@code optString()} and {@code optLong()} values of
+ * the platform {@link JSONObject}, which it replaced for purchases and sku details.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class JsonFieldReaderTest {
+
+    private static final String PURCHASE = "{\"orderId\":\"GPA.1234-5678-9012-34567\","
+            + "\"packageName\":\"net.kosev.example\",\"productId\":\"premium\","
+            + "\"purchaseTime\":1512345678901,\"purchaseState\":0,"
+            + "\"developerPayload\":\"payload-1\",\"purchaseToken\":\"opaque.token-value\"}";
+
+    private static final String SKU_DETAILS = "{\"productId\":\"coins_100\",\"type\":\"inapp\","
+            + "\"price\":\"\\u20ac0.99\",\"price_amount_micros\":990000,\"price_currency_code\":\"EUR\","
+            + "\"title\":\"100 coins (Example)\",\"description\":\"A \\\"small\\\" pile\\nof coins\"}";
+
+    @Test
+    public void readsPurchase() throws Exception {
+        assertSameAsJsonObject(PURCHASE);
+    }
+
+    @Test
+    public void readsSkuDetails() throws Exception {
+        assertSameAsJsonObject(SKU_DETAILS);
+    }
+
+    @Test
+    public void readsEscapes() throws Exception {
+        assertSameAsJsonObject("{\"a\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\",\"b\":\"\\u00e9\\u4e2d\\uD83D\\uDE00\","
+                + "\"c\":\"\",\"\\u0064\":\"escaped name\"}");
+    }
+
+    @Test
+    public void readsLiteralsAndNumbers() throws Exception {
+        assertSameAsJsonObject("{\"t\":true,\"f\":false,\"zero\":0,\"negative\":-42,"
+                + "\"big\":9007199254740993,\"double\":12.75,\"exponent\":1e3,\"string\":\"123\"}");
+    }
+
+    @Test
+    public void readsNestedValuesAsText() throws Exception {
+        assertSameAsJsonObject("{\"before\":1,\"object\":{\"a\":[1,2,{\"b\":\"}]\"}]},"
+                + "\"array\":[\"x\",[]],\"after\":\"end\"}");
+    }
+
+    @Test
+    public void readsNullLiteralLikeOptString() throws Exception {
+        String json = "{\"developerPayload\":null,\"purchaseTime\":null}";
+        assertSameAsJsonObject(json);
+
+        JsonFieldReader reader = new JsonFieldReader(json);
+        assertTrue(reader.nextField());
+        assertEquals("null", reader.stringValue());
+        assertTrue(reader.nextField());
+        assertEquals(0, reader.longValue());
+        assertFalse(reader.nextField());
+    }
+
+    @Test
+    public void toleratesWhitespace() throws Exception {
+        assertSameAsJsonObject(" \n{ \"a\" :\t\"x y\" ,\r\n\"b\": 17 , \"c\" : true }\n");
+    }
+
+    @Test
+    public void readsEmptyObject() throws Exception {
+        assertFalse(new JsonFieldReader("{}").nextField());
+        assertFalse(new JsonFieldReader(" { } ").nextField());
+    }
+
+    @Test
+    public void skipsUnreadValues() throws Exception {
+        JsonFieldReader reader = new JsonFieldReader("{\"skipped\":{\"x\":\"\\\"}\"},\"read\":\"value\",\"last\":[1]}");
+        assertTrue(reader.nextField());
+        assertEquals("skipped", reader.name());
+        assertTrue(reader.nextField());
+        assertEquals("read", reader.name());
+        assertEquals("value", reader.stringValue());
+        assertTrue(reader.nextField());
+        reader.skipValue();
+        assertFalse(reader.nextField());
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] inputs = {
+                "",
+                "   ",
+                "[]",
+                "\"string\"",
+                "{",
+                "{\"a\"",
+                "{\"a\":",
+                "{\"a\":}",
+                "{\"a\" 1}",
+                "{\"a\":1",
+                "{\"a\":1,}",
+                "{\"a\":1 \"b\":2}",
+                "{\"a\":\"unterminated}",
+                "{\"a\":{\"b\":1}",
+                "{\"a\":\"\\u12\"}",
+                "{\"a\":\"\\uzzzz\"}",
+        };
+        for (String input : inputs) {
+            assertMalformed(input);
+        }
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsNull() throws Exception {
+        new JsonFieldReader(null);
+    }
+
+    /**
+     * Reads every field and compares it with what {@link JSONObject} makes of the same text.
+     * Numbers with a fraction or exponent are kept as written, so only their long value is
+     * compared.
+     */
+    private static void assertSameAsJsonObject(String json) throws JSONException {
+        Map<String, String> strings = new LinkedHashMap<>();
+        Map<String, Long> longs = new LinkedHashMap<>();
+        JsonFieldReader reader = new JsonFieldReader(json);
+        while (reader.nextField()) {
+            String value = reader.stringValue();
+            strings.put(reader.name(), value);
+        }
+        reader = new JsonFieldReader(json);
+        while (reader.nextField()) {
+            longs.put(reader.name(), reader.longValue());
+        }
+
+        JSONObject object = new JSONObject(json);
+        assertEquals(object.length(), strings.size());
+        Iterator<String> names = object.keys();
+        while (names.hasNext()) {
+            String name = names.next();
+            assertTrue(name, strings.containsKey(name));
+            Object value = object.get(name);
+            if (!(value instanceof Double)) {
+                assertEquals(name, object.optString(name), strings.get(name));
+            }
+            assertEquals(name, object.optLong(name), (long) longs.get(name));
+        }
+    }
+
+    private static void assertMalformed(String json) {
+        try {
+            new JSONObject(json);
+            fail("JSONObject accepted " + json);
+        } catch (JSONException expected) {
+            // both must reject it
+        }
+        try {
+            JsonFieldReader reader = new JsonFieldReader(json);
+            while (reader.nextField()) {
+                reader.stringValue();
+            }
+            fail("JsonFieldReader accepted " + json);
+        } catch (JSONException expected) {
+            // both must reject it
+        }
+    }
+
+}
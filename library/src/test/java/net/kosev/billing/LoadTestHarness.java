@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Bundle;
+
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a {@link Billing} instance connected to a {@link FakeBillingService} through
+ * thousands of inventory loads from several threads and then through sequential
+ * purchase and consume cycles, and reports throughput and latency percentiles.
+ * Runs under Robolectric, which provides the main looper and service binding.
+ */
+class LoadTestHarness {
+
+    private static final int REQUEST_PURCHASE = 1001;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    /**
+     * Harness settings, read from {@code loadtest.*} system properties.
+     */
+    static class Config {
+        int loadCycles = Integer.getInteger("loadtest.loadCycles", 2000);
+        int loadThreads = Integer.getInteger("loadtest.loadThreads", 8);
+        int purchaseCycles = Integer.getInteger("loadtest.purchaseCycles", 200);
+        int catalogSize = Integer.getInteger("loadtest.catalogSize", 200);
+        int ownedItems = Integer.getInteger("loadtest.ownedItems", 100);
+        int pageSize = Integer.getInteger("loadtest.pageSize", 50);
+        long latencyMillis = Long.getLong("loadtest.latencyMillis", 2);
+        long jitterMillis = Long.getLong("loadtest.jitterMillis", 3);
+        double errorRate = Double.parseDouble(System.getProperty("loadtest.errorRate", "0.01"));
+        long seed = Long.getLong("loadtest.seed", 1);
+    }
+
+    static class Result {
+        final String mName;
+        final LatencyHistogram mLatency = new LatencyHistogram();
+        final AtomicLong mErrors = new AtomicLong();
+        final AtomicLong mTimeouts = new AtomicLong();
+        long mElapsedNanos;
+
+        Result(String name) {
+            mName = name;
+        }
+
+        long getOperations() {
+            return mLatency.getCount() + mErrors.get();
+        }
+
+        long getTimeouts() {
+            return mTimeouts.get();
+        }
+
+        @Override
+        public String toString() {
+            double seconds = mElapsedNanos / 1e9;
+            return String.format(Locale.US,
+                    "%-9s %6d ops %6d errors %4d timeouts %9.1f ops/s   p50 %7.2f  p90 %7.2f  p99 %7.2f  p99.9 %7.2f  max %7.2f ms",
+                    mName, getOperations(), mErrors.get(), mTimeouts.get(), getOperations() / seconds,
+                    millis(mLatency.getPercentile(50)), millis(mLatency.getPercentile(90)),
+                    millis(mLatency.getPercentile(99)), millis(mLatency.getPercentile(99.9)),
+                    millis(mLatency.getMax()));
+        }
+    }
+
+    /**
+     * Activity that hands purchase flow starts to the harness instead of showing the Play Store.
+     */
+    public static class PurchaseActivity extends Activity {
+        static final Object FLOW_STARTED = new Object();
+
+        final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<>();
+        final BlockingQueue<Integer> mRequestCodes = new LinkedBlockingQueue<>();
+
+        @Override
+        public void startIntentSenderForResult(IntentSender intent, int requestCode, Intent fillInIntent,
+                                               int flagsMask, int flagsValues, int extraFlags) {
+            mRequestCodes.add(requestCode);
+            mEvents.add(FLOW_STARTED);
+        }
+
+        @Override
+        public void startIntentSenderForResult(IntentSender intent, int requestCode, Intent fillInIntent,
+                                               int flagsMask, int flagsValues, int extraFlags, Bundle options) {
+            mRequestCodes.add(requestCode);
+            mEvents.add(FLOW_STARTED);
+        }
+    }
+
+    private final Context mContext;
+    private final FakeBillingService mService;
+    private final Config mConfig;
+    private final HistogramBillingMetrics mMetrics = new HistogramBillingMetrics();
+    private final ExecutorService mCallbackExecutor = Executors.newSingleThreadExecutor();
+
+    LoadTestHarness(Context context, FakeBillingService service, Config config) {
+        mContext = context;
+        mService = service;
+        mConfig = config;
+    }
+
+    HistogramBillingMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Creates a billing instance on the fake service with the harness callback executor
+     * and metrics. Must be called on the main thread.
+     */
+    Billing createBilling() throws InterruptedException {
+        Billing billing = new Billing(mContext, mService.getPublicKey());
+        billing.setCallbackExecutor(mCallbackExecutor);
+        billing.setMetrics(mMetrics);
+
+        final CountDownLatch created = new CountDownLatch(1);
+        final int[] error = { Billing.BILLING_RESPONSE_RESULT_OK };
+        billing.create(new Billing.CreateListener() {
+            public void onSuccess() {
+                created.countDown();
+            }
+
+            public void onError(int response, Exception e) {
+                error[0] = response;
+                created.countDown();
+            }
+        });
+        awaitOnMainThread(created);
+        if (error[0] != Billing.BILLING_RESPONSE_RESULT_OK) {
+            throw new IllegalStateException("Billing setup failed with " + error[0]);
+        }
+        return billing;
+    }
+
+    Result runLoads(final Billing billing) throws InterruptedException {
+        final Result result = new Result("load");
+        final ArrayList<String> skus = new ArrayList<>();
+        for (int i = 0; i < mConfig.catalogSize; i++) {
+            skus.add(FakeBillingService.sku(i));
+        }
+
+        int threads = mConfig.loadThreads;
+        final int cyclesPerThread = (mConfig.loadCycles + threads - 1) / threads;
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread("Load test #" + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < cyclesPerThread; i++) {
+                            loadOnce(billing, skus, result);
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        awaitOnMainThread(done);
+        result.mElapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void loadOnce(Billing billing, ArrayList<String> skus, Result result) throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final int[] response = { Billing.BILLING_RESPONSE_RESULT_OK };
+        long start = System.nanoTime();
+        billing.loadInventory(skus, new Billing.InventoryListener() {
+            public void onSuccess(Inventory inventory) {
+                loaded.countDown();
+            }
+
+            public void onError(int code, Exception e) {
+                response[0] = code;
+                loaded.countDown();
+            }
+        });
+
+        if (!loaded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            result.mTimeouts.incrementAndGet();
+        } else if (response[0] != Billing.BILLING_RESPONSE_RESULT_OK) {
+            result.mErrors.incrementAndGet();
+        } else {
+            result.mLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Buys and consumes one item per cycle, one cycle at a time. Must be called on the
+     * main thread, which is pumped while waiting so that consume retries can run.
+     */
+    Result runPurchases(Billing billing) throws Exception {
+        Result result = new Result("purchase");
+        PurchaseActivity activity = Robolectric.setupActivity(PurchaseActivity.class);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < mConfig.purchaseCycles; i++) {
+            purchaseOnce(billing, activity, FakeBillingService.sku(i % mConfig.catalogSize), result);
+        }
+        result.mElapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void purchaseOnce(Billing billing, PurchaseActivity activity, String sku, Result result) throws Exception {
+        final BlockingQueue<Object> events = activity.mEvents;
+        long start = System.nanoTime();
+        billing.launchPurchaseFlow(activity, sku, Billing.TYPE_INAPP, REQUEST_PURCHASE, new Billing.PurchaseListener() {
+            public void onSuccess(Purchase purchase) {
+                events.add(purchase);
+            }
+
+            public void onError(int response, Exception e) {
+                events.add(response);
+            }
+        });
+
+        Object started = pollOnMainThread(events);
+        if (started == null) {
+            result.mTimeouts.incrementAndGet();
+            return;
+        }
+        if (started != PurchaseActivity.FLOW_STARTED) {
+            // getBuyIntent failed
+            result.mErrors.incrementAndGet();
+            return;
+        }
+
+        FakeBillingService.BuyRequest request = mService.takeBuyRequest(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        billing.onActivityResult(REQUEST_PURCHASE, Activity.RESULT_OK, mService.completePurchase(request));
+        Object purchased = pollOnMainThread(events);
+        if (!(purchased instanceof Purchase)) {
+            if (purchased == null) result.mTimeouts.incrementAndGet();
+            else result.mErrors.incrementAndGet();
+            return;
+        }
+
+        billing.consume((Purchase) purchased, new Billing.ConsumeListener() {
+            public void onSuccess(Purchase purchase) {
+                events.add(Boolean.TRUE);
+            }
+
+            public void onError(Purchase purchase, int response, Exception e) {
+                events.add(Boolean.FALSE);
+            }
+        });
+        Object consumed = pollOnMainThread(events);
+        if (consumed == null) {
+            result.mTimeouts.incrementAndGet();
+        } else if (!Boolean.TRUE.equals(consumed)) {
+            result.mErrors.incrementAndGet();
+        } else {
+            result.mLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    void shutdown() {
+        mCallbackExecutor.shutdown();
+    }
+
+    /**
+     * Per billing service call latencies and response codes collected through {@link BillingMetrics}.
+     */
+    String describeServiceCalls() {
+        StringBuilder builder = new StringBuilder();
+        String[] calls = {
+                BillingMetrics.CALL_IS_BILLING_SUPPORTED, BillingMetrics.CALL_GET_SKU_DETAILS,
+                BillingMetrics.CALL_GET_BUY_INTENT, BillingMetrics.CALL_GET_PURCHASES,
+                BillingMetrics.CALL_CONSUME_PURCHASE
+        };
+        for (String call : calls) {
+            LatencyHistogram latency = mMetrics.getCallLatency(call);
+            builder.append(String.format(Locale.US, "%-18s %7d calls   p50 %7.2f  p99 %7.2f  max %7.2f ms%n",
+                    call, latency.getCount(), millis(latency.getPercentile(50)),
+                    millis(latency.getPercentile(99)), millis(latency.getMax())));
+        }
+        builder.append(String.format(Locale.US, "%-18s %7d items   p50 %7.2f  p99 %7.2f ms per batch%n", "verify",
+                mMetrics.getVerifiedItems(), millis(mMetrics.getVerifyLatency().getPercentile(50)),
+                millis(mMetrics.getVerifyLatency().getPercentile(99))));
+        builder.append(String.format(Locale.US, "%-18s %7d items   p50 %7.2f  p99 %7.2f ms per batch%n", "parse",
+                mMetrics.getParsedItems(), millis(mMetrics.getParseLatency().getPercentile(50)),
+                millis(mMetrics.getParseLatency().getPercentile(99))));
+        builder.append("responses ").append(mMetrics.getResponseCounts());
+        return builder.toString();
+    }
+
+    /**
+     * Waits for the latch while running main looper tasks, so that delayed retries posted
+     * by {@link Billing} get their turn.
+     */
+    static void awaitOnMainThread(CountDownLatch latch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS * 10);
+        while (!latch.await(5, TimeUnit.MILLISECONDS)) {
+            ShadowLooper.idleMainLooper(100, TimeUnit.MILLISECONDS);
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Timed out");
+        }
+    }
+
+    private static Object pollOnMainThread(BlockingQueue<Object> events) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            Object event = events.poll(5, TimeUnit.MILLISECONDS);
+            if (event != null) return event;
+            ShadowLooper.idleMainLooper(100, TimeUnit.MILLISECONDS);
+        }
+        return null;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 Nikola Kosev
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.kosev.billing;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SkuCatalog} queries against a linear scan of a random catalog, with prices drawn
+ * from a small range so that many skus share a price.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class SkuCatalogTest {
+
+    private static final String[] TYPES = { Billing.TYPE_INAPP, Billing.TYPE_SUBS, "unknown", null };
+    private static final String[] CURRENCIES = { "EUR", "USD", "JPY", null };
+    private static final int CATALOG_SIZE = 300;
+    private static final int PRICES = 40;
+    private static final long PRICE_STEP = 250000;
+
+    private static final Comparator<SkuDetails> PRICE_ORDER = new Comparator<SkuDetails>() {
+        public int compare(SkuDetails a, SkuDetails b) {
+            if (a.priceAmountMicros != b.priceAmountMicros) {
+                return a.priceAmountMicros < b.priceAmountMicros ? -1 : 1;
+            }
+            return a.sku.compareTo(b.sku);
+        }
+    };
+
+    private final List<SkuDetails> mDetails = new ArrayList<>();
+    private SkuCatalog mCatalog;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(5);
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            String type = random.nextInt(4) == 0 ? Billing.TYPE_SUBS : Billing.TYPE_INAPP;
+            String currency = CURRENCIES[random.nextInt(3)];
+            mDetails.add(skuDetails("sku_" + i, type, currency, random.nextInt(PRICES) * PRICE_STEP));
+        }
+        mCatalog = new SkuCatalog(mDetails);
+    }
+
+    @Test
+    public void getAllMatchesScan() {
+        assertEquals(CATALOG_SIZE, mCatalog.size());
+        for (String type : TYPES) {
+            for (String currency : CURRENCIES) {
+                assertEquals(scan(type, currency, Long.MIN_VALUE, Long.MAX_VALUE), mCatalog.getAll(type, currency));
+            }
+        }
+    }
+
+    @Test
+    public void priceRangesMatchScan() {
+        for (String type : TYPES) {
+            for (String currency : CURRENCIES) {
+                for (long min = -1; min <= PRICES; min += 3) {
+                    for (long max = min - 2; max <= PRICES; max += 3) {
+                        long minMicros = min * PRICE_STEP;
+                        long maxMicros = max * PRICE_STEP;
+                        List<SkuDetails> expected = scan(type, currency, minMicros, maxMicros);
+                        assertEquals(expected, mCatalog.getByPrice(type, currency, minMicros, maxMicros));
+                        assertEquals(expected.size(), mCatalog.count(type, currency, minMicros, maxMicros));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void emptyWhenMinAboveMax() {
+        long price = mDetails.get(0).priceAmountMicros;
+        assertEquals(0, mCatalog.count(null, null, price + PRICE_STEP, price - PRICE_STEP));
+        assertTrue(mCatalog.getByPrice(null, null, price + PRICE_STEP, price - PRICE_STEP).isEmpty());
+        assertEquals(0, mCatalog.count(null, null, Long.MAX_VALUE, Long.MIN_VALUE));
+    }
+
+    @Test
+    public void topQueriesMatchScan() {
+        for (String type : TYPES) {
+            for (String currency : CURRENCIES) {
+                List<SkuDetails> all = scan(type, currency, Long.MIN_VALUE, Long.MAX_VALUE);
+                List<SkuDetails> reversed = new ArrayList<>(all);
+                Collections.reverse(reversed);
+                for (int count : new int[] { 0, 1, 7, all.size(), all.size() + 1 }) {
+                    int expected = Math.min(count, all.size());
+                    assertEquals(all.subList(0, expected), mCatalog.getCheapest(type, currency, count));
+                    assertEquals(reversed.subList(0, expected), mCatalog.getMostExpensive(type, currency, count));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cheapestRejectsNegativeCount() {
+        mCatalog.getCheapest(null, null, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mostExpensiveRejectsNegativeCount() {
+        mCatalog.getMostExpensive(Billing.TYPE_INAPP, "EUR", -1);
+    }
+
+    private List<SkuDetails> scan(String type, String currency, long minMicros, long maxMicros) {
+        List<SkuDetails> result = new ArrayList<>();
+        for (SkuDetails item : mDetails) {
+            if (type != null && !type.equals(item.type)) continue;
+            if (currency != null && !currency.equals(item.priceCurrencyCode)) continue;
+            if (item.priceAmountMicros < minMicros || item.priceAmountMicros > maxMicros) continue;
+            result.add(item);
+        }
+        Collections.sort(result, PRICE_ORDER);
+        return result;
+    }
+
+    private static SkuDetails skuDetails(String sku, String type, String currency, long priceMicros) throws JSONException {
+        return new SkuDetails("{\"productId\":\"" + sku + "\",\"type\":\"" + type + "\",\"price\":\"" + priceMicros
+                + "\",\"price_amount_micros\":" + priceMicros + ",\"price_currency_code\":\"" + currency
+                + "\",\"title\":\"" + sku + "\",\"description\":\"\"}");
+    }
+}